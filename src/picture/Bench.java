@@ -0,0 +1,407 @@
+package picture;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Load generator for whole PictureProcessor jobs (load, commands and save). Generates a corpus of
+ * synthetic pictures from a seed, then starts jobs running a mix of pipelines over them at a fixed
+ * rate across a pool of threads, and reports the latency percentiles, throughput and garbage
+ * collection the run saw.
+ *
+ * <p>The jobs are started on a schedule whether or not the earlier ones have finished, and each
+ * latency is measured from when its job was meant to start, so time spent queueing behind slow
+ * jobs counts against them.
+ */
+class Bench {
+
+  // the pipelines the jobs take turns at, at random
+  private static final List<List<String>> PIPELINES = List.of(
+      List.of("invert"),
+      List.of("grayscale", "equalize"),
+      List.of("autolevels", "flip", "H"),
+      List.of("blur", "blur"),
+      List.of("rotate", "30"),
+      List.of("median", "1")
+  );
+
+  // the sizes of the synthetic pictures
+  List<int[]> sizes = List.of(new int[]{256, 256}, new int[]{1024, 768});
+  // how many pictures of each size to generate
+  int images = 4;
+  long seed = 1;
+  int threads = Runtime.getRuntime().availableProcessors();
+  // jobs started per second
+  double rate = 10;
+  int jobs = 200;
+  // jobs run one at a time before the measured ones, to warm the JIT up
+  int warmup = 20;
+  Path corpus;
+  Path results;
+
+  /**
+   * Runs the benchmark described by the arguments, each job being run with the given options.
+   *
+   * <pre>
+   * bench [--sizes WxH,...] [--images N] [--seed N] [--threads N] [--rate N] [--jobs N]
+   *       [--warmup N] corpus-directory results.json
+   * </pre>
+   */
+  static void run(Options options, List<String> arguments) {
+    final var bench = parse(new ArrayList<>(arguments));
+    final var result = bench.run(options);
+    result.report(System.out);
+    try {
+      Files.writeString(bench.results, result.toJson());
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  static Bench parse(List<String> arguments) {
+    final var bench = new Bench();
+
+    while (!arguments.isEmpty() && arguments.get(0).startsWith("--")) {
+      final var option = arguments.remove(0);
+      if (arguments.isEmpty()) {
+        throw new RuntimeException("Missing value for " + option);
+      }
+      final var value = arguments.remove(0);
+      switch (option) {
+        case "--sizes" -> bench.sizes = Arrays.stream(value.split(","))
+            .map(Bench::size)
+            .toList();
+        case "--images" -> bench.images = positive(option, Integer.parseInt(value));
+        case "--seed" -> bench.seed = Long.parseLong(value);
+        case "--threads" -> bench.threads = positive(option, Integer.parseInt(value));
+        case "--rate" -> bench.rate = Double.parseDouble(value);
+        case "--jobs" -> bench.jobs = positive(option, Integer.parseInt(value));
+        case "--warmup" -> bench.warmup = Integer.parseInt(value);
+        default -> throw new RuntimeException("Invalid bench option: " + option);
+      }
+    }
+    if (bench.rate <= 0) {
+      throw new RuntimeException("Invalid value for --rate: " + bench.rate);
+    }
+
+    if (arguments.size() != 2) {
+      throw new RuntimeException("Expected a corpus directory and a results path");
+    }
+    bench.corpus = Path.of(arguments.get(0));
+    bench.results = Path.of(arguments.get(1));
+    return bench;
+  }
+
+  private static int[] size(String size) {
+    final var parts = size.split("x");
+    if (parts.length != 2) {
+      throw new RuntimeException("Invalid size: " + size);
+    }
+    return new int[]{
+        positive("--sizes", Integer.parseInt(parts[0])),
+        positive("--sizes", Integer.parseInt(parts[1]))
+    };
+  }
+
+  private static int positive(String option, int value) {
+    if (value <= 0) {
+      throw new RuntimeException("Invalid value for " + option + ": " + value);
+    }
+    return value;
+  }
+
+  Result run(Options options) {
+    final var inputs = generateCorpus();
+    final var outputs = corpus.resolve("out");
+    try {
+      Files.createDirectories(outputs);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+
+    // the jobs are chosen up front so every run with the same seed does the same work
+    final var random = new Random(seed);
+    final var schedule = new int[warmup + jobs][2];
+    for (final var job : schedule) {
+      job[0] = random.nextInt(inputs.size());
+      job[1] = random.nextInt(PIPELINES.size());
+    }
+
+    for (var i = 0; i < warmup; i++) {
+      try {
+        job(options, inputs.get(schedule[i][0]), PIPELINES.get(schedule[i][1]), outputs, i);
+      } catch (RuntimeException e) {
+        // warmup jobs aren't measured, so missing the deadline or failing doesn't count
+      }
+    }
+
+    final var result = new Result(this);
+    final var executor = Executors.newFixedThreadPool(threads);
+    final var gcBefore = gcTotals();
+    ManagementFactory.getMemoryPoolMXBeans().forEach(MemoryPoolMXBean::resetPeakUsage);
+
+    final var period = (long) (1e9 / rate);
+    final var start = System.nanoTime();
+    for (var i = 0; i < jobs; i++) {
+      final var intended = start + i * period;
+      // parking can end early, and a job started early would go faster than the rate
+      for (var now = System.nanoTime(); now < intended; now = System.nanoTime()) {
+        LockSupport.parkNanos(intended - now);
+      }
+
+      final var input = inputs.get(schedule[warmup + i][0]);
+      final var pipeline = schedule[warmup + i][1];
+      final var number = warmup + i;
+      executor.execute(() -> {
+        try {
+          job(options, input, PIPELINES.get(pipeline), outputs, number);
+          result.record(pipeline, System.nanoTime() - intended);
+        } catch (DeadlineExceededException e) {
+          result.missed.incrementAndGet();
+        } catch (RuntimeException e) {
+          result.failed.incrementAndGet();
+        }
+      });
+    }
+    awaitTermination(executor);
+    result.elapsedNanos = System.nanoTime() - start;
+
+    final var gcAfter = gcTotals();
+    result.collections = gcAfter[0] - gcBefore[0];
+    result.collectionMillis = gcAfter[1] - gcBefore[1];
+    result.poolPeaksBytes = ManagementFactory.getMemoryPoolMXBeans().stream()
+        .filter(pool -> pool.getType() == MemoryType.HEAP)
+        .mapToLong(pool -> pool.getPeakUsage().getUsed())
+        .sum();
+    result.committedHeapBytes =
+        ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getCommitted();
+    return result;
+  }
+
+  private static void job(
+      Options options, Path input, List<String> pipeline, Path outputs, int number) {
+    final var output = outputs.resolve("job" + number + ".png");
+    try {
+      PictureProcessor.run(options, new ArrayList<>(pipeline), input.toString(),
+          output.toString(), new RasterPool(), new Metrics());
+    } finally {
+      try {
+        Files.deleteIfExists(output);
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+  }
+
+  private static void awaitTermination(ExecutorService executor) {
+    executor.shutdown();
+    try {
+      while (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+        System.err.println("Still waiting for the jobs to finish");
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    }
+  }
+
+  // the number of collections and the milliseconds spent in them so far, over every collector
+  private static long[] gcTotals() {
+    final var totals = new long[2];
+    for (final var collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+      totals[0] += Math.max(collector.getCollectionCount(), 0);
+      totals[1] += Math.max(collector.getCollectionTime(), 0);
+    }
+    return totals;
+  }
+
+  /**
+   * Writes the pictures of the corpus that aren't there already, and returns the paths of all of
+   * them.
+   */
+  List<Path> generateCorpus() {
+    final var paths = new ArrayList<Path>();
+    try {
+      Files.createDirectories(corpus);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+
+    for (final var size : sizes) {
+      for (var i = 0; i < images; i++) {
+        final var path = corpus.resolve(
+            "synthetic" + size[0] + "x" + size[1] + "-" + seed + "-" + i + ".png");
+        if (!Files.exists(path)) {
+          // every picture has its own seed so it comes out the same whichever others exist
+          final var random = new Random(((seed * 31 + size[0]) * 31 + size[1]) * 31 + i);
+          synthetic(size[0], size[1], random).saveAs(path.toString());
+        }
+        paths.add(path);
+      }
+    }
+    return paths;
+  }
+
+  /**
+   * Generates a picture that is partly smooth and partly busy, like a photograph: a gradient
+   * between two random colours with random rectangles over it, and a little noise everywhere.
+   */
+  static Picture synthetic(int width, int height, Random random) {
+    final var picture = new Picture(width, height);
+    final var rgbs = picture.data();
+
+    final var from = new int[]{random.nextInt(256), random.nextInt(256), random.nextInt(256)};
+    final var to = new int[]{random.nextInt(256), random.nextInt(256), random.nextInt(256)};
+    for (var y = 0; y < height; y++) {
+      for (var x = 0; x < width; x++) {
+        final var t = (x + y) / (double) Math.max(width + height - 2, 1);
+        rgbs[y * width + x] = Picture.packed(
+            (int) (from[0] + t * (to[0] - from[0])),
+            (int) (from[1] + t * (to[1] - from[1])),
+            (int) (from[2] + t * (to[2] - from[2])));
+      }
+    }
+
+    for (var r = 0; r < 8; r++) {
+      final var x0 = random.nextInt(width);
+      final var y0 = random.nextInt(height);
+      final var x1 = Math.min(width, x0 + 1 + random.nextInt(Math.max(width / 3, 1)));
+      final var y1 = Math.min(height, y0 + 1 + random.nextInt(Math.max(height / 3, 1)));
+      final var colour = Picture.packed(
+          random.nextInt(256), random.nextInt(256), random.nextInt(256));
+      for (var y = y0; y < y1; y++) {
+        Arrays.fill(rgbs, y * width + x0, y * width + x1, colour);
+      }
+    }
+
+    for (var i = 0; i < rgbs.length; i++) {
+      final var noise = random.nextInt(9) - 4;
+      final var rgb = rgbs[i];
+      rgbs[i] = Picture.packed(
+          clamped(((rgb >> 16) & 0xff) + noise),
+          clamped(((rgb >> 8) & 0xff) + noise),
+          clamped((rgb & 0xff) + noise));
+    }
+
+    return picture;
+  }
+
+  private static int clamped(int value) {
+    return Math.max(0, Math.min(255, value));
+  }
+
+  /**
+   * What a run of the benchmark saw.
+   */
+  static class Result {
+
+    private final Bench bench;
+    // latencies of the jobs that completed, as those that didn't produced no picture
+    final LatencyHistogram latency = new LatencyHistogram();
+    final LatencyHistogram[] pipelineLatency = new LatencyHistogram[PIPELINES.size()];
+    // jobs that ran out of time, and jobs that failed for any other reason
+    final AtomicLong missed = new AtomicLong();
+    final AtomicLong failed = new AtomicLong();
+    long elapsedNanos;
+    long collections;
+    // total time the collectors report spending, which includes concurrent work on some of them,
+    // so it is more than the time the jobs were paused for
+    long collectionMillis;
+    // the sum of each heap pool's peak, which were likely at different times, so an upper bound on
+    // the most heap in use at once
+    long poolPeaksBytes;
+    long committedHeapBytes;
+
+    Result(Bench bench) {
+      this.bench = bench;
+      for (var i = 0; i < pipelineLatency.length; i++) {
+        pipelineLatency[i] = new LatencyHistogram();
+      }
+    }
+
+    void record(int pipeline, long nanos) {
+      latency.record(nanos);
+      pipelineLatency[pipeline].record(nanos);
+    }
+
+    // completed pictures per second
+    double throughput() {
+      return latency.count() / (elapsedNanos / 1e9);
+    }
+
+    void report(PrintStream out) {
+      out.printf("%d of %d jobs completed in %.3f s: %.1f images/s (%d missed, %d failed)%n",
+          latency.count(), bench.jobs, elapsedNanos / 1e9, throughput(), missed.get(),
+          failed.get());
+      out.printf("latency p50 %.3f ms, p99 %.3f ms, p99.9 %.3f ms, max %.3f ms%n",
+          latency.percentile(0.5) / 1e6,
+          latency.percentile(0.99) / 1e6,
+          latency.percentile(0.999) / 1e6,
+          latency.max() / 1e6);
+      out.printf(
+          "gc: %d collections, %d ms collecting; heap: %.1f MB of pool peaks, %.1f MB committed%n",
+          collections, collectionMillis, poolPeaksBytes / 1e6, committedHeapBytes / 1e6);
+    }
+
+    String toJson() {
+      final var json = new StringBuilder("{\n");
+      json.append("  \"seed\": ").append(bench.seed).append(",\n");
+      json.append("  \"sizes\": [");
+      for (var i = 0; i < bench.sizes.size(); i++) {
+        final var size = bench.sizes.get(i);
+        json.append(i == 0 ? "" : ", ")
+            .append('"').append(size[0]).append('x').append(size[1]).append('"');
+      }
+      json.append("],\n");
+      json.append("  \"images\": ").append(bench.images).append(",\n");
+      json.append("  \"threads\": ").append(bench.threads).append(",\n");
+      json.append("  \"rate\": ").append(bench.rate).append(",\n");
+      json.append("  \"jobs\": ").append(bench.jobs).append(",\n");
+      json.append("  \"completed\": ").append(latency.count()).append(",\n");
+      json.append("  \"missed\": ").append(missed.get()).append(",\n");
+      json.append("  \"failed\": ").append(failed.get()).append(",\n");
+      json.append("  \"elapsedSeconds\": ").append(elapsedNanos / 1e9).append(",\n");
+      json.append("  \"imagesPerSecond\": ").append(throughput()).append(",\n");
+      json.append("  \"latencyMillis\": ").append(latencyJson(latency)).append(",\n");
+      json.append("  \"pipelines\": [\n");
+      for (var i = 0; i < PIPELINES.size(); i++) {
+        json.append("    {\"commands\": \"").append(String.join(" ", PIPELINES.get(i)))
+            .append("\", \"completed\": ").append(pipelineLatency[i].count())
+            .append(", \"latencyMillis\": ").append(latencyJson(pipelineLatency[i]))
+            .append(i == PIPELINES.size() - 1 ? "}\n" : "},\n");
+      }
+      json.append("  ],\n");
+      json.append("  \"gc\": {\"collections\": ").append(collections)
+          .append(", \"collectionMillis\": ").append(collectionMillis).append("},\n");
+      json.append("  \"heap\": {\"poolPeaksSumBytes\": ").append(poolPeaksBytes)
+          .append(", \"committedBytes\": ").append(committedHeapBytes).append("}\n");
+      return json.append("}\n").toString();
+    }
+
+    private static String latencyJson(LatencyHistogram histogram) {
+      return String.format(Locale.ROOT,
+          "{\"p50\": %.3f, \"p99\": %.3f, \"p99.9\": %.3f, \"max\": %.3f, \"mean\": %.3f}",
+          histogram.percentile(0.5) / 1e6,
+          histogram.percentile(0.99) / 1e6,
+          histogram.percentile(0.999) / 1e6,
+          histogram.max() / 1e6,
+          histogram.mean() / 1e6);
+    }
+  }
+}
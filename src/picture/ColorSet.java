@@ -0,0 +1,71 @@
+package picture;
+
+import java.util.Arrays;
+
+/**
+ * An open addressing set of packed RGB colours that numbers them in the order they were first
+ * added. It holds at most a fixed number of colours, which keeps the table small enough to stay in
+ * cache while counting the colours of a whole picture.
+ */
+class ColorSet {
+
+  private static final int EMPTY = -1;
+
+  private final int limit;
+  private final int mask;
+  private final int[] keys;
+  private final int[] indices;
+  private final int[] colours;
+  private int size = 0;
+
+  ColorSet(int limit) {
+    this.limit = limit;
+    // at most half full, so probe sequences stay short
+    final var capacity = Integer.highestOneBit(Math.max(limit, 1) * 4 - 1);
+    this.mask = capacity - 1;
+    this.keys = new int[capacity];
+    this.indices = new int[capacity];
+    this.colours = new int[limit];
+    Arrays.fill(keys, EMPTY);
+  }
+
+  /**
+   * Returns the number of the colour, adding it if it's new, or -1 if it's new and the set is
+   * already full.
+   */
+  int add(int rgb) {
+    final var key = rgb & 0xffffff;
+    var slot = hash(key) & mask;
+
+    while (keys[slot] != EMPTY) {
+      if (keys[slot] == key) {
+        return indices[slot];
+      }
+      slot = (slot + 1) & mask;
+    }
+
+    if (size == limit) {
+      return -1;
+    }
+    keys[slot] = key;
+    indices[slot] = size;
+    colours[size] = key;
+    return size++;
+  }
+
+  int size() {
+    return size;
+  }
+
+  /**
+   * Returns the colours in the order they were numbered.
+   */
+  int[] colours() {
+    return Arrays.copyOf(colours, size);
+  }
+
+  private static int hash(int key) {
+    final var h = key * 0x9e3779b9;
+    return h ^ (h >>> 16);
+  }
+}
@@ -0,0 +1,115 @@
+package picture;
+
+import java.util.List;
+
+/**
+ * Rough estimates of how long a pipeline will take, from the time each command was measured to
+ * take per pixel on a single core. Parallel commands will usually beat these on more cores, so
+ * the estimates err on the slow side.
+ */
+final class CostModel {
+
+  // nanoseconds per pixel
+  private static final double POINTWISE = 3;
+  private static final double HISTOGRAM = 15;
+  private static final double BLUR = 90;
+  private static final double MIN_MAX = 80;
+  private static final double MEDIAN = 1300;
+  private static final double INVERSE_MAPPING = 450;
+  private static final double SHEARING = 30;
+  private static final double BLEND_PER_PICTURE = 20;
+  private static final double SAVE_PNG = 150;
+  private static final double SAVE_UNCOMPRESSED = 5;
+
+  private CostModel() {
+  }
+
+  /**
+   * Estimates how long the commands followed by saving in the given format will take, in
+   * nanoseconds, for a picture of the given size.
+   */
+  static double estimateNanos(List<String> commands, int width, int height, RasterFormat format) {
+    var w = width;
+    var h = height;
+    var nanos = 0.0;
+
+    for (var i = 0; i < commands.size(); i++) {
+      final var pixels = (double) w * h;
+      switch (commands.get(i)) {
+        case "invert", "grayscale" -> nanos += POINTWISE * pixels;
+        case "equalize", "autolevels" -> nanos += HISTOGRAM * pixels;
+        case "blur" -> nanos += BLUR * pixels;
+        case "erode", "dilate" -> {
+          nanos += MIN_MAX * pixels;
+          i++;
+        }
+        case "open", "close" -> {
+          nanos += 2 * MIN_MAX * pixels;
+          i++;
+        }
+        case "median" -> {
+          nanos += MEDIAN * pixels;
+          i++;
+        }
+        case "blend" -> {
+          // the rest are all pictures to blend in
+          nanos += BLEND_PER_PICTURE * pixels * (commands.size() - i);
+          i = commands.size();
+        }
+        case "rotate", "flip", "matrix" -> {
+          final var transformation = transformation(commands, i);
+          final var size = Picture.transformedSize(w, h, transformation);
+          final var sheared = commands.get(i).equals("rotate")
+              && Double.parseDouble(commands.get(i + 1)) % 90 != 0
+              && pixels >= Picture.SHEAR_ROTATION_MIN_PIXELS;
+          w = size.width;
+          h = size.height;
+          nanos += (sheared ? SHEARING : INVERSE_MAPPING) * w * h;
+          i += commands.get(i).equals("matrix") ? 4 : 1;
+        }
+        default -> throw new RuntimeException("Invalid command: " + commands.get(i));
+      }
+    }
+
+    return nanos + (format == RasterFormat.PNG ? SAVE_PNG : SAVE_UNCOMPRESSED) * w * h;
+  }
+
+  /**
+   * Returns the smallest factor the picture has to be shrunk by for the commands to be estimated
+   * to finish within the budget, which is 1 if they already do.
+   */
+  static int previewFactor(
+      List<String> commands, int width, int height, RasterFormat format, long budgetNanos) {
+    var factor = 1;
+    while (factor < Math.max(width, height)
+        && estimateNanos(
+            commands,
+            (width + factor - 1) / factor,
+            (height + factor - 1) / factor,
+            format) > budgetNanos) {
+      factor++;
+    }
+    return factor;
+  }
+
+  private static Matrix transformation(List<String> commands, int i) {
+    return switch (commands.get(i)) {
+      case "rotate" -> Matrix.rotate(Double.parseDouble(commands.get(i + 1)));
+      case "matrix" -> new Matrix(2, 2, new Double[][]{
+          new Double[]{
+              Double.parseDouble(commands.get(i + 1)),
+              Double.parseDouble(commands.get(i + 2))
+          },
+          new Double[]{
+              Double.parseDouble(commands.get(i + 3)),
+              Double.parseDouble(commands.get(i + 4))
+          },
+      });
+      // flips don't change the size
+      default -> new Matrix(2, 2, new Double[][]{
+          new Double[]{1.0, 0.0},
+          new Double[]{0.0, 1.0}
+      });
+    };
+  }
+}
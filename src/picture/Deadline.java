@@ -0,0 +1,88 @@
+package picture;
+
+import java.util.function.Supplier;
+
+/**
+ * A time by which a job has to be finished. The long running Picture operations cooperate with
+ * it by calling {@link #checkpoint()} once per row (or tile, or band), which throws a {@link
+ * DeadlineExceededException} once the time has passed, so a job that is going to be late is
+ * dropped rather than run to completion.
+ *
+ * <p>The deadline of a job is held per thread while {@link #run(Supplier)} is running it. Work
+ * handed to other threads has to take the deadline with it, by calling {@link #current()} before
+ * handing the work over and {@link #check()} on that deadline inside.
+ */
+public class Deadline {
+
+  /**
+   * A deadline that never passes, which is the current one outside of {@link #run(Supplier)}.
+   */
+  static final Deadline NONE = new Deadline(Long.MAX_VALUE);
+
+  private static final ThreadLocal<Deadline> CURRENT = ThreadLocal.withInitial(() -> NONE);
+
+  // in System.nanoTime(), Long.MAX_VALUE meaning never
+  private final long nanos;
+
+  private Deadline(long nanos) {
+    this.nanos = nanos;
+  }
+
+  /**
+   * Returns a deadline the given number of milliseconds from now.
+   */
+  public static Deadline after(long millis) {
+    return afterNanos(millis * 1_000_000);
+  }
+
+  /**
+   * Returns a deadline the given number of nanoseconds from now, or {@link #NONE} for {@link
+   * Long#MAX_VALUE}, so that a deadline sent as its {@link #remainingNanos()} comes back the same.
+   */
+  static Deadline afterNanos(long nanos) {
+    return nanos == Long.MAX_VALUE ? NONE : new Deadline(System.nanoTime() + nanos);
+  }
+
+  /**
+   * Returns the deadline of the job running on this thread.
+   */
+  static Deadline current() {
+    return CURRENT.get();
+  }
+
+  /**
+   * Throws if the deadline of the job running on this thread has passed.
+   */
+  static void checkpoint() {
+    CURRENT.get().check();
+  }
+
+  /**
+   * Throws if this deadline has passed.
+   */
+  void check() {
+    if (nanos != Long.MAX_VALUE && System.nanoTime() - nanos >= 0) {
+      throw new DeadlineExceededException();
+    }
+  }
+
+  /**
+   * Returns how many nanoseconds are left, which is negative once the deadline has passed.
+   */
+  long remainingNanos() {
+    return nanos == Long.MAX_VALUE ? Long.MAX_VALUE : nanos - System.nanoTime();
+  }
+
+  /**
+   * Runs the job on this thread with this as its deadline.
+   */
+  public <T> T run(Supplier<T> job) {
+    final var previous = CURRENT.get();
+    CURRENT.set(this);
+    try {
+      return job.get();
+    } finally {
+      CURRENT.set(previous);
+    }
+  }
+}
@@ -0,0 +1,13 @@
+package picture;
+
+/**
+ * Thrown from inside a job that is still running when its {@link Deadline} passes.
+ */
+public class DeadlineExceededException extends RuntimeException {
+
+  private static final long serialVersionUID = 1L;
+
+  public DeadlineExceededException() {
+    super("Deadline exceeded");
+  }
+}
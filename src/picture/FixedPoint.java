@@ -0,0 +1,32 @@
+package picture;
+
+/**
+ * Integer arithmetic that reproduces the floating point rounding used by the Double based colour
+ * maths, which scales a channel and then truncates it after adding 0.01.
+ */
+final class FixedPoint {
+
+  // the Double maths nudges every result up by 1 / NUDGE before truncating
+  private static final int NUDGE = 100;
+
+  private FixedPoint() {
+  }
+
+  /**
+   * Returns true if dividing by this denominator in integers always truncates to the same value as
+   * the Double maths does. A quotient numerator / denominator + 0.01 is never a whole number unless
+   * the denominator is a multiple of 100, so otherwise it is always at least 1 / (100 *
+   * denominator) away from one, which is far more than the Double maths is ever out by.
+   */
+  static boolean reproducesDouble(long denominator) {
+    return denominator > 0 && denominator % NUDGE != 0;
+  }
+
+  /**
+   * Exactly computes <tt>(int) (numerator / denominator + 0.01)</tt>.
+   */
+  static int truncate(long numerator, long denominator) {
+    // (int) truncates towards zero, and so does integer division
+    return (int) ((NUDGE * numerator + denominator) / (NUDGE * denominator));
+  }
+}
@@ -0,0 +1,153 @@
+package picture;
+
+import java.util.stream.IntStream;
+
+/**
+ * Per channel and luminance histograms of a Picture. Luminance is the channel average used by
+ * {@link Color#grayscaled()}.
+ */
+class Histogram {
+
+  static final int LEVELS = 256;
+
+  // the rows counted by each parallel task
+  private static final int STRIPE_ROWS = 32;
+
+  private static final int RED = 0;
+  private static final int GREEN = 1;
+  private static final int BLUE = 2;
+  private static final int LUMINANCE = 3;
+
+  private final long[][] counts;
+  private final long total;
+
+  private Histogram(long[][] counts, long total) {
+    this.counts = counts;
+    this.total = total;
+  }
+
+  /**
+   * Counts every pixel of the picture. Stripes of rows are counted in parallel, each task into
+   * its own set of counters, and those are merged at the end so no counter is ever shared.
+   */
+  static Histogram of(Picture picture) {
+    final var w = picture.getWidth();
+    final var h = picture.getHeight();
+    final var rgbs = picture.data();
+    final var stripes = (h + STRIPE_ROWS - 1) / STRIPE_ROWS;
+    final var deadline = Deadline.current();
+
+    final var counts = IntStream.range(0, stripes)
+        .parallel()
+        .collect(
+            () -> new long[4][LEVELS],
+            (local, stripe) -> {
+              deadline.check();
+              final var end = Math.min((stripe + 1) * STRIPE_ROWS, h) * w;
+              for (var i = stripe * STRIPE_ROWS * w; i < end; i++) {
+                final var r = (rgbs[i] >> 16) & 0xff;
+                final var g = (rgbs[i] >> 8) & 0xff;
+                final var b = rgbs[i] & 0xff;
+                local[RED][r]++;
+                local[GREEN][g]++;
+                local[BLUE][b]++;
+                local[LUMINANCE][(r + g + b) / 3]++;
+              }
+            },
+            (left, right) -> {
+              for (var c = 0; c < left.length; c++) {
+                for (var v = 0; v < LEVELS; v++) {
+                  left[c][v] += right[c][v];
+                }
+              }
+            });
+
+    return new Histogram(counts, (long) w * h);
+  }
+
+  long[] red() {
+    return counts[RED].clone();
+  }
+
+  long[] green() {
+    return counts[GREEN].clone();
+  }
+
+  long[] blue() {
+    return counts[BLUE].clone();
+  }
+
+  long[] luminance() {
+    return counts[LUMINANCE].clone();
+  }
+
+  long total() {
+    return total;
+  }
+
+  /**
+   * Builds the table that flattens the luminance histogram. The same curve is applied to every
+   * channel so colours keep their balance.
+   */
+  LookupTable equalization() {
+    final var luminance = counts[LUMINANCE];
+    final var curve = new int[LEVELS];
+
+    // the cumulative count of the darkest level present maps to black
+    var first = 0;
+    while (first < LEVELS && luminance[first] == 0) {
+      first++;
+    }
+    if (first == LEVELS || luminance[first] == total) {
+      return LookupTable.identity();
+    }
+    final var darkest = luminance[first];
+
+    var cumulative = 0L;
+    for (var v = 0; v < LEVELS; v++) {
+      cumulative += luminance[v];
+      curve[v] = rounded(Math.max(cumulative - darkest, 0) * (LEVELS - 1), total - darkest);
+    }
+
+    return new LookupTable(curve, curve, curve);
+  }
+
+  /**
+   * Builds the table that stretches each channel separately so its darkest level becomes 0 and
+   * its brightest becomes 255.
+   */
+  LookupTable autoLevels() {
+    return new LookupTable(
+        stretch(counts[RED]),
+        stretch(counts[GREEN]),
+        stretch(counts[BLUE])
+    );
+  }
+
+  private static int[] stretch(long[] channel) {
+    var lo = 0;
+    while (lo < LEVELS && channel[lo] == 0) {
+      lo++;
+    }
+    var hi = LEVELS - 1;
+    while (hi > lo && channel[hi] == 0) {
+      hi--;
+    }
+
+    final var curve = new int[LEVELS];
+    for (var v = 0; v < LEVELS; v++) {
+      if (hi <= lo) {
+        // only one level, so there is nothing to stretch
+        curve[v] = v;
+      } else {
+        curve[v] = rounded(Math.min(Math.max(v - lo, 0), hi - lo) * (LEVELS - 1L), hi - lo);
+      }
+    }
+    return curve;
+  }
+
+  // rounds numerator / denominator to the nearest int, both being non-negative
+  private static int rounded(long numerator, long denominator) {
+    return (int) ((2 * numerator + denominator) / (2 * denominator));
+  }
+}
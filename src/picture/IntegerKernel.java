@@ -0,0 +1,93 @@
+package picture;
+
+import java.util.Optional;
+
+/**
+ * A convolution kernal whose weights are all whole multiples of 1 / denominator, stored as integer
+ * numerators so that a convolution can be summed entirely in ints and rounded exactly once.
+ */
+class IntegerKernel {
+
+  // the largest denominator searched for when converting a kernal
+  private static final int MAX_DENOMINATOR = 1 << 16;
+  // how close a scaled weight has to be to a whole number to count as one
+  private static final double TOLERANCE = 1e-9;
+
+  public final int w;
+  public final int h;
+  public final int[][] numerators;
+  public final int denominator;
+
+  private IntegerKernel(int w, int h, int[][] numerators, int denominator) {
+    this.w = w;
+    this.h = h;
+    this.numerators = numerators;
+    this.denominator = denominator;
+  }
+
+  /**
+   * Converts the kernal to integer numerators over the smallest denominator that represents every
+   * weight, provided convolving with them reproduces {@link Picture#convoluted(Matrix)} exactly and
+   * the sums fit in an int. Otherwise returns nothing and the Double maths has to be used.
+   */
+  static Optional<IntegerKernel> of(Matrix kernal) {
+    for (var d = 1; d <= MAX_DENOMINATOR; d++) {
+      if (!represents(kernal, d)) {
+        continue;
+      }
+      final var numerators = numeratorsOver(kernal, d);
+
+      // the first denominator found is the smallest, and every other one is a multiple of it
+      if (!FixedPoint.reproducesDouble(d)) {
+        return Optional.empty();
+      }
+
+      var largestSum = 0L;
+      for (final var row : numerators) {
+        for (final var n : row) {
+          largestSum += Math.abs(n) * 255L;
+        }
+      }
+      if (largestSum > Integer.MAX_VALUE) {
+        return Optional.empty();
+      }
+
+      return Optional.of(new IntegerKernel(kernal.w, kernal.h, numerators, d));
+    }
+
+    return Optional.empty();
+  }
+
+  private static boolean represents(Matrix kernal, int d) {
+    for (var y = 0; y < kernal.h; y++) {
+      for (var x = 0; x < kernal.w; x++) {
+        final var scaled = kernal.vals[y][x] * d;
+        final var rounded = Math.rint(scaled);
+        if (Math.abs(scaled - rounded) > TOLERANCE || Math.abs(rounded) > Integer.MAX_VALUE) {
+          return false;
+        }
+      }
+    }
+    return true;
+  }
+
+  private static int[][] numeratorsOver(Matrix kernal, int d) {
+    final var numerators = new int[kernal.h][kernal.w];
+
+    for (var y = 0; y < kernal.h; y++) {
+      for (var x = 0; x < kernal.w; x++) {
+        numerators[y][x] = (int) Math.rint(kernal.vals[y][x] * d);
+      }
+    }
+
+    return numerators;
+  }
+
+  /**
+   * Rounds a sum of numerator weighted channel values to a channel value, exactly as the Double
+   * maths would have.
+   */
+  int round(int sum) {
+    return FixedPoint.truncate(sum, denominator);
+  }
+}
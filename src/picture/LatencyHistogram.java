@@ -0,0 +1,79 @@
+package picture;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts latencies in log spaced buckets, so that percentiles can be read back to within 1/16 of
+ * their value however long the tail is, in a fixed amount of memory. Can be recorded into from
+ * many threads at once.
+ */
+class LatencyHistogram {
+
+  // each power of two is split into this many buckets
+  private static final int SUB_BUCKET_BITS = 4;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  private static final int BUCKETS = (Long.SIZE - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+  private final AtomicLong count = new AtomicLong();
+  private final AtomicLong total = new AtomicLong();
+  private final AtomicLong max = new AtomicLong();
+
+  void record(long nanos) {
+    if (nanos < 0) {
+      throw new IllegalArgumentException("Negative latency: " + nanos);
+    }
+    counts.incrementAndGet(bucket(nanos));
+    count.incrementAndGet();
+    total.addAndGet(nanos);
+    max.accumulateAndGet(nanos, Math::max);
+  }
+
+  long count() {
+    return count.get();
+  }
+
+  long max() {
+    return max.get();
+  }
+
+  double mean() {
+    return count.get() == 0 ? 0 : (double) total.get() / count.get();
+  }
+
+  /**
+   * Returns the smallest latency that at least the given fraction of those recorded are no more
+   * than, rounded up to the top of its bucket.
+   */
+  long percentile(double fraction) {
+    final var rank = Math.max((long) Math.ceil(fraction * count.get()), 1);
+    var seen = 0L;
+    for (var i = 0; i < BUCKETS; i++) {
+      seen += counts.get(i);
+      if (seen >= rank) {
+        return Math.min(highest(i), max.get());
+      }
+    }
+    return max.get();
+  }
+
+  static int bucket(long value) {
+    if (value < SUB_BUCKETS) {
+      return (int) value;
+    }
+    final var exponent = Long.SIZE - 1 - Long.numberOfLeadingZeros(value);
+    final var shift = exponent - SUB_BUCKET_BITS;
+    return (shift + 1) * SUB_BUCKETS + (int) ((value >> shift) & (SUB_BUCKETS - 1));
+  }
+
+  // the largest value that falls in the bucket
+  static long highest(int bucket) {
+    if (bucket < SUB_BUCKETS) {
+      return bucket;
+    }
+    final var shift = bucket / SUB_BUCKETS - 1;
+    final var lowest = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+    return lowest + (1L << shift) - 1;
+  }
+}
@@ -0,0 +1,63 @@
+package picture;
+
+import java.util.stream.IntStream;
+
+/**
+ * A per channel mapping of every colour level to a new level, applied to a whole Picture in one
+ * pass.
+ */
+class LookupTable {
+
+  private final int[] red;
+  private final int[] green;
+  private final int[] blue;
+
+  LookupTable(int[] red, int[] green, int[] blue) {
+    assert (red.length == Histogram.LEVELS
+        && green.length == Histogram.LEVELS
+        && blue.length == Histogram.LEVELS);
+    this.red = red;
+    this.green = green;
+    this.blue = blue;
+  }
+
+  static LookupTable identity() {
+    final var curve = IntStream.range(0, Histogram.LEVELS).toArray();
+    return new LookupTable(curve, curve, curve);
+  }
+
+  /**
+   * Writes the mapped picture into a picture of the same size, which may be the same one.
+   */
+  Picture appliedTo(Picture picture, Picture into) {
+    final var w = picture.getWidth();
+    final var src = picture.data();
+    final var dst = into.data();
+
+    // packs the three curves into one table of ready shifted channels
+    final var packedRed = new int[Histogram.LEVELS];
+    final var packedGreen = new int[Histogram.LEVELS];
+    final var packedBlue = new int[Histogram.LEVELS];
+    for (var v = 0; v < Histogram.LEVELS; v++) {
+      packedRed[v] = (red[v] & 0xff) << 16;
+      packedGreen[v] = (green[v] & 0xff) << 8;
+      packedBlue[v] = blue[v] & 0xff;
+    }
+
+    final var deadline = Deadline.current();
+    IntStream.range(0, picture.getHeight())
+        .parallel()
+        .forEach(y -> {
+          deadline.check();
+          for (var i = y * w; i < (y + 1) * w; i++) {
+            final var rgb = src[i];
+            dst[i] = 0xff000000
+                | packedRed[(rgb >> 16) & 0xff]
+                | packedGreen[(rgb >> 8) & 0xff]
+                | packedBlue[rgb & 0xff];
+          }
+        });
+
+    return into;
+  }
+}
@@ -0,0 +1,38 @@
+package picture;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+
+/**
+ * Wall clock timings of each stage of a run of the PictureProcessor.
+ */
+class Metrics {
+
+  private final ArrayList<String> stages = new ArrayList<>();
+  private final ArrayList<Long> nanos = new ArrayList<>();
+
+  /**
+   * Records a stage that started at the given {@link System#nanoTime()} and has just finished.
+   */
+  void record(String stage, long startNanos) {
+    stages.add(stage);
+    nanos.add(System.nanoTime() - startNanos);
+  }
+
+  void report(PrintStream out, RasterPool pool) {
+    var total = 0L;
+    for (var i = 0; i < stages.size(); i++) {
+      out.printf("%-12s %10.3f ms%n", stages.get(i), nanos.get(i) / 1e6);
+      total += nanos.get(i);
+    }
+    out.printf("%-12s %10.3f ms%n", "total", total / 1e6);
+    out.printf(
+        "pool: %d borrowed, %d reused, %d allocated (%.1f MB), %d released%n",
+        pool.getBorrowed(),
+        pool.getReused(),
+        pool.getBorrowed() - pool.getReused(),
+        pool.getAllocatedBytes() / 1e6,
+        pool.getReleased()
+    );
+  }
+}
@@ -0,0 +1,211 @@
+package picture;
+
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * Square window filters over single colour planes, all taking the same time per pixel whatever
+ * the radius. Windows hanging off the edge of the plane only cover the pixels inside it for the
+ * minimum and maximum, and repeat the edge pixels for the median.
+ */
+final class Morphology {
+
+  private static final int LEVELS = 256;
+  // the columns each parallel task of the vertical pass works down
+  private static final int STRIP_COLUMNS = 64;
+
+  private Morphology() {
+  }
+
+  /**
+   * Writes the minimum of every (2 * radius + 1) square window of src into dst, using scratch (the
+   * same size) for the horizontal pass.
+   */
+  static void minimum(
+      short[] src, short[] dst, short[] scratch, int width, int height, int radius) {
+    // min(f) = 255 - max(255 - f), which also pads the edges with 255 rather than 0, and 255 - f
+    // is f ^ 255 for levels, so the complement is taken as the passes read and write
+    maximumAlongRows(src, scratch, width, height, radius, LEVELS - 1);
+    maximumDownColumns(scratch, dst, width, height, radius, LEVELS - 1);
+  }
+
+  /**
+   * Writes the maximum of every (2 * radius + 1) square window of src into dst, as a horizontal
+   * pass into scratch (the same size) then a vertical van Herk/Gil-Werman pass.
+   */
+  static void maximum(
+      short[] src, short[] dst, short[] scratch, int width, int height, int radius) {
+    maximumAlongRows(src, scratch, width, height, radius, 0);
+    maximumDownColumns(scratch, dst, width, height, radius, 0);
+  }
+
+  /**
+   * van Herk/Gil-Werman: the padded row is cut into blocks as wide as the window, so every window
+   * covers the tail of one block and the head of the next. A running maximum from the start of
+   * each block and another from the end of each block then give any window in one comparison.
+   * Every level read is xored with flip first. Bands of rows are done in parallel, each reusing
+   * its own running maxima.
+   */
+  private static void maximumAlongRows(
+      short[] src, short[] dst, int width, int height, int radius, int flip) {
+    final var k = 2 * radius + 1;
+    final var blocks = (width + 2 * radius + k - 1) / k;
+    final var bands = Math.min(height, Runtime.getRuntime().availableProcessors());
+    final var deadline = Deadline.current();
+
+    IntStream.range(0, bands)
+        .parallel()
+        .forEach(band -> {
+          final var prefix = new short[blocks * k];
+          final var suffix = new short[blocks * k];
+
+          for (var y = band * height / bands; y < (band + 1) * height / bands; y++) {
+            deadline.check();
+            final var row = y * width;
+
+            // padding counts as 0, which never wins a maximum
+            for (var i = 0; i < prefix.length; i++) {
+              final var x = i - radius;
+              final short value = x >= 0 && x < width ? (short) (src[row + x] ^ flip) : 0;
+              prefix[i] = i % k == 0 ? value : (short) Math.max(prefix[i - 1], value);
+            }
+            for (var i = suffix.length - 1; i >= 0; i--) {
+              final var x = i - radius;
+              final short value = x >= 0 && x < width ? (short) (src[row + x] ^ flip) : 0;
+              suffix[i] = i % k == k - 1 ? value : (short) Math.max(suffix[i + 1], value);
+            }
+
+            for (var x = 0; x < width; x++) {
+              // the window over x starts at x in padded co-ordinates
+              dst[row + x] = (short) Math.max(suffix[x], prefix[x + k - 1]);
+            }
+          }
+        });
+  }
+
+  /**
+   * The same as {@link #maximumAlongRows} but down the columns. Whole rows are combined at a time
+   * so memory is still read in order, and strips of columns are done in parallel. Every maximum
+   * is xored with flip as it is written.
+   */
+  private static void maximumDownColumns(
+      short[] src, short[] dst, int width, int height, int radius, int flip) {
+    final var k = 2 * radius + 1;
+    final var blocks = (height + 2 * radius + k - 1) / k;
+    final var strips = (width + STRIP_COLUMNS - 1) / STRIP_COLUMNS;
+    final var deadline = Deadline.current();
+
+    IntStream.range(0, strips)
+        .parallel()
+        .forEach(strip -> {
+          final var x0 = strip * STRIP_COLUMNS;
+          final var columns = Math.min(STRIP_COLUMNS, width - x0);
+          final var prefix = new short[blocks * k * columns];
+          final var suffix = new short[blocks * k * columns];
+
+          for (var i = 0; i < blocks * k; i++) {
+            deadline.check();
+            final var y = i - radius;
+            final var inside = y >= 0 && y < height;
+            for (var c = 0; c < columns; c++) {
+              final short value = inside ? src[y * width + x0 + c] : 0;
+              prefix[i * columns + c] = i % k == 0
+                  ? value
+                  : (short) Math.max(prefix[(i - 1) * columns + c], value);
+            }
+          }
+          for (var i = blocks * k - 1; i >= 0; i--) {
+            final var y = i - radius;
+            final var inside = y >= 0 && y < height;
+            for (var c = 0; c < columns; c++) {
+              final short value = inside ? src[y * width + x0 + c] : 0;
+              suffix[i * columns + c] = i % k == k - 1
+                  ? value
+                  : (short) Math.max(suffix[(i + 1) * columns + c], value);
+            }
+          }
+
+          for (var y = 0; y < height; y++) {
+            for (var c = 0; c < columns; c++) {
+              dst[y * width + x0 + c] = (short) (flip ^ Math.max(
+                  suffix[y * columns + c], prefix[(y + k - 1) * columns + c]));
+            }
+          }
+        });
+  }
+
+  /**
+   * Writes the median of every (2 * radius + 1) square window of src into dst, using
+   * Perreault-Hebert: a histogram is kept for every column of the window height, moved down one
+   * row at a time, and the window histogram slides along each row by adding one column histogram
+   * and taking another away. Bands of rows are done in parallel, each with its own histograms.
+   */
+  static void median(short[] src, short[] dst, int width, int height, int radius) {
+    final var bands = Math.min(height, Runtime.getRuntime().availableProcessors());
+    final var half = (2 * radius + 1) * (2 * radius + 1) / 2;
+    final var deadline = Deadline.current();
+
+    IntStream.range(0, bands)
+        .parallel()
+        .forEach(band -> {
+          final var y0 = band * height / bands;
+          final var y1 = (band + 1) * height / bands;
+          final var columns = new int[width * LEVELS];
+          final var window = new int[LEVELS];
+
+          for (var y = y0; y < y1; y++) {
+            deadline.check();
+            if (y == y0) {
+              for (var dy = -radius; dy <= radius; dy++) {
+                final var row = clamp(y + dy, height) * width;
+                for (var x = 0; x < width; x++) {
+                  columns[x * LEVELS + src[row + x]]++;
+                }
+              }
+            } else {
+              final var leaving = clamp(y - radius - 1, height) * width;
+              final var entering = clamp(y + radius, height) * width;
+              for (var x = 0; x < width; x++) {
+                columns[x * LEVELS + src[leaving + x]]--;
+                columns[x * LEVELS + src[entering + x]]++;
+              }
+            }
+
+            Arrays.fill(window, 0);
+            for (var dx = -radius; dx <= radius; dx++) {
+              addColumn(window, columns, clamp(dx, width), 1);
+            }
+            dst[y * width] = medianOf(window, half);
+
+            for (var x = 1; x < width; x++) {
+              addColumn(window, columns, clamp(x - radius - 1, width), -1);
+              addColumn(window, columns, clamp(x + radius, width), 1);
+              dst[y * width + x] = medianOf(window, half);
+            }
+          }
+        });
+  }
+
+  private static void addColumn(int[] window, int[] columns, int x, int sign) {
+    final var offset = x * LEVELS;
+    for (var v = 0; v < LEVELS; v++) {
+      window[v] += sign * columns[offset + v];
+    }
+  }
+
+  // the level with exactly half of the window below it
+  private static short medianOf(int[] window, int half) {
+    var seen = 0;
+    for (var v = 0; v < LEVELS; v++) {
+      seen += window[v];
+      if (seen > half) {
+        return (short) v;
+      }
+    }
+    return LEVELS - 1;
+  }
+
+  private static int clamp(int i, int length) {
+    return Math.min(Math.max(i, 0), length - 1);
+  }
+}
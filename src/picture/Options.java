@@ -0,0 +1,86 @@
+package picture;
+
+import java.util.List;
+
+/**
+ * The <tt>--</tt> options that can come before the commands given to the PictureProcessor.
+ */
+class Options {
+
+  // print stage timings and pool statistics to stderr
+  boolean metrics = false;
+  // run as a tile worker for a coordinator instead of processing a file
+  boolean worker = false;
+  // how many worker processes to shard the picture across, none meaning run in this one
+  int workers = 0;
+  // the side of the square tiles the picture is cut into when sharding
+  int tileSize = 512;
+  // how long a worker has to start, or to process a tile, before it is restarted
+  int workerTimeoutMillis = TileCoordinator.DEFAULT_TIMEOUT_MILLIS;
+  // save as an indexed PNG when the output has few enough colours
+  boolean indexed = false;
+  // save as an indexed PNG with at most this many colours, approximating if it has more
+  int quantise = 0;
+  // the format written to stdout, files being saved in the format of their extension
+  RasterFormat format = RasterFormat.PNG;
+  // give up with a DeadlineExceededException after this many milliseconds, negative meaning never
+  long deadlineMillis = -1;
+  // process a downscaled preview instead when the full picture looks like missing the deadline
+  boolean degrade = false;
+
+  /**
+   * Removes the leading options from the arguments and returns them.
+   */
+  static Options parse(List<String> arguments) {
+    final var options = new Options();
+
+    while (!arguments.isEmpty() && arguments.get(0).startsWith("--")) {
+      final var option = arguments.remove(0);
+      switch (option) {
+        case "--metrics" -> options.metrics = true;
+        case "--worker" -> options.worker = true;
+        case "--workers" -> options.workers = positive(option, arguments);
+        case "--tile" -> options.tileSize = positive(option, arguments);
+        case "--worker-timeout" -> options.workerTimeoutMillis = positive(option, arguments);
+        case "--indexed" -> options.indexed = true;
+        case "--degrade" -> options.degrade = true;
+        case "--deadline" -> {
+          if (arguments.isEmpty()) {
+            throw new RuntimeException("Missing value for " + option);
+          }
+          options.deadlineMillis = Long.parseLong(arguments.remove(0));
+          if (options.deadlineMillis < 0) {
+            throw new RuntimeException(
+                "Invalid value for " + option + ": " + options.deadlineMillis);
+          }
+        }
+        case "--format" -> {
+          if (arguments.isEmpty()) {
+            throw new RuntimeException("Missing value for " + option);
+          }
+          options.format = RasterFormat.ofName(arguments.remove(0));
+        }
+        case "--quantize" -> {
+          options.quantise = positive(option, arguments);
+          if (options.quantise > Palette.MAX_COLOURS) {
+            throw new RuntimeException("Can't quantize to more than " + Palette.MAX_COLOURS);
+          }
+        }
+        default -> throw new RuntimeException("Invalid option: " + option);
+      }
+    }
+
+    return options;
+  }
+
+  private static int positive(String option, List<String> arguments) {
+    if (arguments.isEmpty()) {
+      throw new RuntimeException("Missing value for " + option);
+    }
+    final var value = Integer.parseInt(arguments.remove(0));
+    if (value <= 0) {
+      throw new RuntimeException("Invalid value for " + option + ": " + value);
+    }
+    return value;
+  }
+}
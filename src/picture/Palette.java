@@ -0,0 +1,266 @@
+package picture;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.IndexColorModel;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Optional;
+
+/**
+ * A picture reduced to at most 256 colours: the palette of colours, and the palette index of every
+ * pixel. Saving a picture like this as an indexed PNG stores one byte per pixel (or less) instead
+ * of three.
+ */
+class Palette {
+
+  static final int MAX_COLOURS = 256;
+
+  // median cut works on colours cut down to this many bits per channel
+  private static final int CUT_BITS = 5;
+  private static final int CUT_LEVELS = 1 << CUT_BITS;
+
+  private final int width;
+  private final int height;
+  private final int[] colours;
+  private final int[] indices;
+
+  private Palette(int width, int height, int[] colours, int[] indices) {
+    this.width = width;
+    this.height = height;
+    this.colours = colours;
+    this.indices = indices;
+  }
+
+  int size() {
+    return colours.length;
+  }
+
+  /**
+   * Returns the exact palette of the picture, or nothing if it has more than the given number of
+   * colours.
+   */
+  static Optional<Palette> exact(Picture picture, int maxColours) {
+    final var data = picture.data();
+    final var set = new ColorSet(maxColours);
+    final var indices = new int[data.length];
+
+    for (var i = 0; i < data.length; i++) {
+      indices[i] = set.add(data[i]);
+      if (indices[i] < 0) {
+        return Optional.empty();
+      }
+    }
+
+    return Optional.of(
+        new Palette(picture.getWidth(), picture.getHeight(), set.colours(), indices));
+  }
+
+  /**
+   * Returns the exact palette of the picture if it has few enough colours, otherwise one that
+   * approximates it with median cut.
+   */
+  static Palette quantised(Picture picture, int maxColours) {
+    return exact(picture, maxColours).orElseGet(() -> medianCut(picture, maxColours));
+  }
+
+  /**
+   * Median cut: starting from a box around every colour, keep splitting the box with the most
+   * pixels spread along the widest channel at its median pixel, until there are as many boxes as
+   * colours. Each box then becomes the average colour of its pixels.
+   */
+  private static Palette medianCut(Picture picture, int maxColours) {
+    final var data = picture.data();
+    // pixel counts and channel totals of every cut down colour
+    final var counts = new long[CUT_LEVELS * CUT_LEVELS * CUT_LEVELS];
+    final var totals = new long[counts.length * 3];
+    for (final var rgb : data) {
+      final var bin = bin(rgb);
+      counts[bin]++;
+      totals[3 * bin] += (rgb >> 16) & 0xff;
+      totals[3 * bin + 1] += (rgb >> 8) & 0xff;
+      totals[3 * bin + 2] += rgb & 0xff;
+    }
+
+    final var boxes = new ArrayList<Box>();
+    boxes.add(new Box(new int[]{0, 0, 0}, new int[]{CUT_LEVELS, CUT_LEVELS, CUT_LEVELS}, counts)
+        .shrunk(counts));
+
+    while (boxes.size() < maxColours) {
+      final var widest = boxes.stream()
+          .filter(box -> box.splittable())
+          .max(Comparator.comparingLong(box -> box.pixels * box.longestSide()));
+      if (widest.isEmpty()) {
+        break;
+      }
+      boxes.remove(widest.get());
+      boxes.addAll(widest.get().split(counts));
+    }
+
+    // every cut down colour points at the box it ended up in
+    final var binBoxes = new int[counts.length];
+    final var colours = new int[boxes.size()];
+    for (var b = 0; b < boxes.size(); b++) {
+      final var box = boxes.get(b);
+      long r = 0;
+      long g = 0;
+      long bl = 0;
+      for (final var bin : box.bins()) {
+        binBoxes[bin] = b;
+        r += totals[3 * bin];
+        g += totals[3 * bin + 1];
+        bl += totals[3 * bin + 2];
+      }
+      final var pixels = Math.max(box.pixels, 1);
+      colours[b] = (int) (((r + pixels / 2) / pixels) << 16
+          | ((g + pixels / 2) / pixels) << 8
+          | ((bl + pixels / 2) / pixels));
+    }
+
+    final var indices = new int[data.length];
+    for (var i = 0; i < data.length; i++) {
+      indices[i] = binBoxes[bin(data[i])];
+    }
+
+    return new Palette(picture.getWidth(), picture.getHeight(), colours, indices);
+  }
+
+  private static int bin(int rgb) {
+    final var shift = 8 - CUT_BITS;
+    return ((((rgb >> 16) & 0xff) >> shift) * CUT_LEVELS + (((rgb >> 8) & 0xff) >> shift))
+        * CUT_LEVELS + ((rgb & 0xff) >> shift);
+  }
+
+  /**
+   * Returns an image using an IndexColorModel, packing several pixels into a byte when the
+   * palette is small enough.
+   */
+  BufferedImage toImage() {
+    final var bits = colours.length <= 2 ? 1 : colours.length <= 4 ? 2 : colours.length <= 16
+        ? 4 : 8;
+    final var reds = new byte[colours.length];
+    final var greens = new byte[colours.length];
+    final var blues = new byte[colours.length];
+    for (var i = 0; i < colours.length; i++) {
+      reds[i] = (byte) (colours[i] >> 16);
+      greens[i] = (byte) (colours[i] >> 8);
+      blues[i] = (byte) colours[i];
+    }
+    final var model = new IndexColorModel(bits, colours.length, reds, greens, blues);
+
+    final var image = new BufferedImage(
+        width,
+        height,
+        bits == 8 ? BufferedImage.TYPE_BYTE_INDEXED : BufferedImage.TYPE_BYTE_BINARY,
+        model);
+    image.getRaster().setSamples(0, 0, width, height, 0, indices);
+    return image;
+  }
+
+  /**
+   * A box of cut down colours, from lo inclusive to hi exclusive along each channel.
+   */
+  private static class Box {
+
+    final int[] lo;
+    final int[] hi;
+    final long pixels;
+
+    Box(int[] lo, int[] hi, long[] counts) {
+      this.lo = lo;
+      this.hi = hi;
+
+      var pixels = 0L;
+      for (final var bin : bins()) {
+        pixels += counts[bin];
+      }
+      this.pixels = pixels;
+    }
+
+    ArrayList<Integer> bins() {
+      final var bins = new ArrayList<Integer>();
+      for (var r = lo[0]; r < hi[0]; r++) {
+        for (var g = lo[1]; g < hi[1]; g++) {
+          for (var b = lo[2]; b < hi[2]; b++) {
+            bins.add((r * CUT_LEVELS + g) * CUT_LEVELS + b);
+          }
+        }
+      }
+      return bins;
+    }
+
+    int longestSide() {
+      return Math.max(hi[0] - lo[0], Math.max(hi[1] - lo[1], hi[2] - lo[2]));
+    }
+
+    boolean splittable() {
+      return pixels > 0 && longestSide() > 1;
+    }
+
+    /**
+     * Returns the smallest box holding all the same pixels.
+     */
+    Box shrunk(long[] counts) {
+      final var newLo = new int[]{CUT_LEVELS, CUT_LEVELS, CUT_LEVELS};
+      final var newHi = new int[]{0, 0, 0};
+      for (var r = lo[0]; r < hi[0]; r++) {
+        for (var g = lo[1]; g < hi[1]; g++) {
+          for (var b = lo[2]; b < hi[2]; b++) {
+            if (counts[(r * CUT_LEVELS + g) * CUT_LEVELS + b] > 0) {
+              final var at = new int[]{r, g, b};
+              for (var c = 0; c < 3; c++) {
+                newLo[c] = Math.min(newLo[c], at[c]);
+                newHi[c] = Math.max(newHi[c], at[c] + 1);
+              }
+            }
+          }
+        }
+      }
+      if (newHi[0] == 0) {
+        // no pixels at all
+        return this;
+      }
+      return new Box(newLo, newHi, counts);
+    }
+
+    /**
+     * Cuts the box across its longest side at the median pixel.
+     */
+    ArrayList<Box> split(long[] counts) {
+      var axis = 0;
+      for (var c = 1; c < 3; c++) {
+        if (hi[c] - lo[c] > hi[axis] - lo[axis]) {
+          axis = c;
+        }
+      }
+
+      // pixels in each slice of the box along the axis
+      final var slices = new long[hi[axis] - lo[axis]];
+      for (var r = lo[0]; r < hi[0]; r++) {
+        for (var g = lo[1]; g < hi[1]; g++) {
+          for (var b = lo[2]; b < hi[2]; b++) {
+            final var at = new int[]{r, g, b};
+            slices[at[axis] - lo[axis]] += counts[(r * CUT_LEVELS + g) * CUT_LEVELS + b];
+          }
+        }
+      }
+
+      // the first slice past half way goes in the upper box, but both have to get something
+      var cut = 1;
+      var seen = slices[0];
+      while (cut < slices.length - 1 && seen * 2 < pixels) {
+        seen += slices[cut];
+        cut++;
+      }
+
+      final var lowerHi = hi.clone();
+      lowerHi[axis] = lo[axis] + cut;
+      final var upperLo = lo.clone();
+      upperLo[axis] = lo[axis] + cut;
+
+      final var halves = new ArrayList<Box>();
+      halves.add(new Box(lo, lowerHi, counts).shrunk(counts));
+      halves.add(new Box(upperLo, hi, counts).shrunk(counts));
+      return halves;
+    }
+  }
+}
@@ -1,9 +1,17 @@
 package picture;
 
 import javax.imageio.ImageIO;
+import java.awt.Dimension;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.function.Function;
 import java.util.stream.IntStream;
 import java.util.stream.Stream;
@@ -14,6 +22,9 @@ import java.util.stream.Stream;
  */
 public class Picture {
 
+  // pictures with at least this many pixels are rotated by shearing
+  static final long SHEAR_ROTATION_MIN_PIXELS = 512 * 512;
+
   /**
    * The internal image representation of this picture.
    */
@@ -37,20 +48,78 @@ public class Picture {
   }
 
   /**
-   * Construct a new Picture from the image data in the specified file.
+   * Construct a new Picture from the image data in the specified file. The format is taken from
+   * the file extension, see {@link RasterFormat}.
    */
   public Picture(String filepath) {
+    this(read(filepath));
+  }
+
+  /**
+   * Construct a new Picture from image data in any of the {@link RasterFormat}s, such as stdin.
+   * The stream is read up to the end of the picture but not closed.
+   */
+  public Picture(InputStream in) {
+    this(read(in));
+  }
+
+  private Picture(BufferedImage image) {
+    this.image = image;
+    horizontalRadius = ((double) this.getWidth() - 1) / 2;
+    verticalRadius = ((double) this.getHeight() - 1) / 2;
+  }
+
+  private static BufferedImage read(String filepath) {
+    try {
+      return switch (RasterFormat.ofPath(filepath)) {
+        case PNG -> packed(ImageIO.read(new File(filepath)));
+        case RAW -> RawRaster.mapRaw(Path.of(filepath));
+        default -> {
+          // read(InputStream) leaves the stream open for callers that own it
+          try (final var in = Files.newInputStream(Path.of(filepath))) {
+            yield read(in);
+          }
+        }
+      };
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private static BufferedImage read(InputStream in) {
+    // not closed, as the stream belongs to the caller
+    final var buffered = new BufferedInputStream(in);
     try {
-      image = ImageIO.read(new File(filepath));
-      horizontalRadius = ((double) this.getWidth() - 1) / 2;
-      verticalRadius = ((double) this.getHeight() - 1) / 2;
+      final var format = RasterFormat.detect(buffered);
+      if (format == RasterFormat.PNG) {
+        return packed(ImageIO.read(buffered));
+      }
+      return RawRaster.read(buffered, format);
     } catch (IOException e) {
       throw new RuntimeException(e);
     }
   }
 
   public Picture(Picture picture) {
-    this(picture.getWidth(), picture.getHeight(), picture.pixelStream());
+    this(picture.getWidth(), picture.getHeight());
+
+    System.arraycopy(picture.data(), 0, this.data(), 0, picture.data().length);
+  }
+
+  /**
+   * Converts a decoded image into the packed RGB layout every Picture uses, so that its pixels can
+   * always be reached through {@link #data()}.
+   */
+  private static BufferedImage packed(BufferedImage decoded) {
+    if (decoded.getType() == BufferedImage.TYPE_INT_RGB) {
+      return decoded;
+    }
+
+    final var w = decoded.getWidth();
+    final var h = decoded.getHeight();
+    final var image = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+    image.setRGB(0, 0, w, h, decoded.getRGB(0, 0, w, h, null, 0, w), 0, w);
+    return image;
   }
 
   /**
@@ -158,9 +227,61 @@ public class Picture {
     return hashCode;
   }
 
+  /**
+   * Saves the picture in the format given by the file extension, see {@link RasterFormat}.
+   */
   public void saveAs(String filepath) {
     try {
-      ImageIO.write(image, "png", new File(filepath));
+      switch (RasterFormat.ofPath(filepath)) {
+        case PNG -> ImageIO.write(image, "png", new File(filepath));
+        case RAW -> RawRaster.mapRaw(this, Path.of(filepath));
+        default -> {
+          try (final var out = new BufferedOutputStream(
+              Files.newOutputStream(Path.of(filepath)))) {
+            this.saveAs(out, RasterFormat.ofPath(filepath));
+          }
+        }
+      }
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * Writes the picture to a stream, such as stdout, in the given format. The stream is flushed
+   * but left open.
+   */
+  public void saveAs(OutputStream out, RasterFormat format) {
+    try {
+      if (format == RasterFormat.PNG) {
+        ImageIO.write(image, "png", out);
+      } else {
+        RawRaster.write(this, out, format);
+      }
+      out.flush();
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * Saves the picture as an indexed PNG using the given palette of it.
+   */
+  void saveAs(String filepath, Palette palette) {
+    try {
+      ImageIO.write(palette.toImage(), "png", new File(filepath));
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * Writes the picture to a stream as an indexed PNG using the given palette of it.
+   */
+  void saveAs(OutputStream out, Palette palette) {
+    try {
+      ImageIO.write(palette.toImage(), "png", out);
+      out.flush();
     } catch (IOException e) {
       throw new RuntimeException(e);
     }
@@ -230,37 +351,56 @@ public class Picture {
         .flatMap(o -> o);
   }
 
+  /**
+   * Returns the array backing this picture, packed as RGB ints row by row. This is not a copy, so
+   * writing to it changes the picture.
+   */
+  int[] data() {
+    return ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+  }
+
   public Point getPoint(int x, int y) {
     return new Point(x - horizontalRadius, verticalRadius - y);
   }
 
   public Picture add(Picture right) {
-    final var left = new Picture(this);
-
-    for (int y = 0; y < getHeight(); y++) {
-      for (int x = 0; x < getWidth(); x++) {
-        left.setPixel(
-            x,
-            y,
-            left.getPixel(x, y)
-                .add(right.getPixel(x, y))
+    final var result = new Picture(this);
+    final var data = result.data();
+    final var rightData = right.data();
+    final var w = this.getWidth();
+    final var rw = right.getWidth();
+
+    // anything outside of the right picture counts as black, so leaves the left one unchanged
+    for (var y = 0; y < Math.min(getHeight(), right.getHeight()); y++) {
+      Deadline.checkpoint();
+      for (var x = 0; x < Math.min(w, rw); x++) {
+        final var left = data[y * w + x];
+        final var rgb = rightData[y * rw + x];
+        data[y * w + x] = packed(
+            ((left >> 16) & 0xff) + ((rgb >> 16) & 0xff),
+            ((left >> 8) & 0xff) + ((rgb >> 8) & 0xff),
+            (left & 0xff) + (rgb & 0xff)
         );
       }
     }
 
-    return left;
+    return result;
   }
 
   public Picture multiply(Double scalar) {
     final var result = new Picture(this);
-
-    for (int y = 0; y < getHeight(); y++) {
-      for (int x = 0; x < getWidth(); x++) {
-        result.setPixel(
-            x,
-            y,
-            result.getPixel(x, y)
-                .multiply(scalar)
+    final var data = result.data();
+    final double k = scalar;
+
+    for (var y = 0; y < getHeight(); y++) {
+      Deadline.checkpoint();
+      for (var i = y * getWidth(); i < (y + 1) * getWidth(); i++) {
+        final var rgb = data[i];
+        // +.01 so floating point errors don't effect what anything is rounded to
+        data[i] = packed(
+            (int) (k * ((rgb >> 16) & 0xff) + 0.01),
+            (int) (k * ((rgb >> 8) & 0xff) + 0.01),
+            (int) (k * (rgb & 0xff) + 0.01)
         );
       }
     }
@@ -281,17 +421,97 @@ public class Picture {
   }
 
   public Picture inverted() {
-    return this.mapColor(c -> c.inverted());
+    return this.inverted(new Picture(this.getWidth(), this.getHeight()));
+  }
+
+  /**
+   * Writes the inverse of this picture into a picture of the same size, which may be this one.
+   */
+  Picture inverted(Picture into) {
+    final var src = this.data();
+    final var dst = into.data();
+
+    for (var y = 0; y < getHeight(); y++) {
+      Deadline.checkpoint();
+      for (var i = y * getWidth(); i < (y + 1) * getWidth(); i++) {
+        dst[i] = 0xff000000 | ~src[i];
+      }
+    }
+
+    return into;
   }
 
   public Picture grayscaled() {
-    return this.mapColor(c -> c.grayscaled());
+    return this.grayscaled(new Picture(this.getWidth(), this.getHeight()));
+  }
+
+  /**
+   * Writes the grayscale of this picture into a picture of the same size, which may be this one.
+   */
+  Picture grayscaled(Picture into) {
+    final var src = this.data();
+    final var dst = into.data();
+
+    for (var y = 0; y < getHeight(); y++) {
+      Deadline.checkpoint();
+      for (var i = y * getWidth(); i < (y + 1) * getWidth(); i++) {
+        final var rgb = src[i];
+        final var avg = (((rgb >> 16) & 0xff) + ((rgb >> 8) & 0xff) + (rgb & 0xff)) / 3;
+        dst[i] = packed(avg, avg, avg);
+      }
+    }
+
+    return into;
+  }
+
+  /**
+   * Spreads the brightness levels out so that they are used evenly.
+   */
+  public Picture equalized() {
+    return this.equalized(new Picture(this.getWidth(), this.getHeight()));
+  }
+
+  /**
+   * Writes the equalised picture into a picture of the same size, which may be this one.
+   */
+  Picture equalized(Picture into) {
+    return Histogram.of(this).equalization().appliedTo(this, into);
+  }
+
+  /**
+   * Stretches each colour channel so that it covers the full range from 0 to 255.
+   */
+  public Picture autoLevelled() {
+    return this.autoLevelled(new Picture(this.getWidth(), this.getHeight()));
+  }
+
+  /**
+   * Writes the auto levelled picture into a picture of the same size, which may be this one.
+   */
+  Picture autoLevelled(Picture into) {
+    return Histogram.of(this).autoLevels().appliedTo(this, into);
   }
 
   public Picture transformed(Matrix transformation) {
-    // uses two test points to determine resultant image size
-    final var tl = this.getPoint(0, 0);
-    final var tr = this.getPoint(this.getWidth() - 1, 0);
+    final var size = this.transformedSize(transformation);
+    return this.transformed(transformation, new Picture(size.width, size.height));
+  }
+
+  /**
+   * Returns the size of the picture {@link #transformed(Matrix)} would give.
+   */
+  Dimension transformedSize(Matrix transformation) {
+    return transformedSize(this.getWidth(), this.getHeight(), transformation);
+  }
+
+  /**
+   * Returns the size of the picture {@link #transformed(Matrix)} would give for a picture of the
+   * given size.
+   */
+  static Dimension transformedSize(int width, int height, Matrix transformation) {
+    // uses two test points (the top corners) to determine resultant image size
+    final var tl = new Point(-(width - 1) / 2.0, (height - 1) / 2.0);
+    final var tr = new Point((width - 1) / 2.0, (height - 1) / 2.0);
     // translates the test points
     final var ntl = transformation.multiply(tl);
     final var ntr = transformation.multiply(tr);
@@ -299,36 +519,107 @@ public class Picture {
     final var horizontalRadius = Math.max(Math.abs(ntl.getX()), Math.abs(ntr.getX()));
     final var verticalRadius = Math.max(Math.abs(ntl.getY()), Math.abs(ntr.getY()));
     // then calculates the size of the new image
-    final var w = (int) (2 * horizontalRadius + 1);
-    final var h = (int) (2 * verticalRadius + 1);
-    // new picture
-    final var result = new Picture(w, h);
+    return new Dimension((int) (2 * horizontalRadius + 1), (int) (2 * verticalRadius + 1));
+  }
+
+  /**
+   * Writes the transformed picture into a different picture of {@link #transformedSize(Matrix)}.
+   */
+  Picture transformed(Matrix transformation, Picture into) {
+    assert (into != this);
 
     final var inverse = transformation.inverse();
 
-    result.pixelStream()
-        .forEach(p -> result.setPixel(new Pixel(
-            p.pos,
-            this.getPixel(inverse.multiply(p.pos))
-        )));
+    for (var y = 0; y < into.getHeight(); y++) {
+      Deadline.checkpoint();
+      for (var x = 0; x < into.getWidth(); x++) {
+        into.setPixel(x, y, this.getPixel(inverse.multiply(into.getPoint(x, y))));
+      }
+    }
+
+    return into;
+  }
+
+  /**
+   * Shrinks the picture by a whole factor, every pixel becoming the average of the block of
+   * factor by factor pixels it replaces (or as much of the block as there is at the edges).
+   */
+  public Picture downscaled(int factor) {
+    assert (factor > 0);
+
+    final var w = this.getWidth();
+    final var h = this.getHeight();
+    final var result = new Picture((w + factor - 1) / factor, (h + factor - 1) / factor);
+    final var src = this.data();
+    final var dst = result.data();
+
+    for (var y = 0; y < result.getHeight(); y++) {
+      Deadline.checkpoint();
+      for (var x = 0; x < result.getWidth(); x++) {
+        var r = 0;
+        var g = 0;
+        var b = 0;
+        var n = 0;
+        for (var sy = y * factor; sy < Math.min((y + 1) * factor, h); sy++) {
+          for (var sx = x * factor; sx < Math.min((x + 1) * factor, w); sx++) {
+            final var rgb = src[sy * w + sx];
+            r += (rgb >> 16) & 0xff;
+            g += (rgb >> 8) & 0xff;
+            b += rgb & 0xff;
+            n++;
+          }
+        }
+        dst[y * result.getWidth() + x] = packed((r + n / 2) / n, (g + n / 2) / n, (b + n / 2) / n);
+      }
+    }
 
     return result;
   }
 
   public Picture rotated(Double angle) {
-    return this.transformed(Matrix.rotate(angle));
+    final var size = this.transformedSize(Matrix.rotate(angle));
+    return this.rotated(angle, new Picture(size.width, size.height));
+  }
+
+  /**
+   * Writes the rotated picture into a different picture of the size {@link
+   * #transformedSize(Matrix)} gives for the rotation. Large pictures turned by anything other
+   * than a multiple of 90 degrees are rotated by {@link ShearRotation}, which reads whole rows at
+   * a time instead of mapping every pixel back through the inverse rotation.
+   */
+  Picture rotated(Double angle, Picture into) {
+    if (angle % 90 != 0 && (long) getWidth() * getHeight() >= SHEAR_ROTATION_MIN_PIXELS) {
+      return ShearRotation.rotated(this, angle, into);
+    }
+    return this.transformed(Matrix.rotate(angle), into);
   }
 
   public Picture convoluted(Matrix kernal) {
+    return this.convoluted(kernal, new Picture(this.getWidth(), this.getHeight()));
+  }
+
+  /**
+   * Writes the convoluted picture into a different picture of the same size.
+   */
+  Picture convoluted(Matrix kernal, Picture into) {
     // check: kernal has a middle
     assert (kernal.h % 2 == 1 && kernal.w % 2 == 1);
+    assert (into != this);
+
+    // most kernals (like the normalised blur) can be done exactly in integers
+    final var integerKernel = IntegerKernel.of(kernal);
+    if (integerKernel.isPresent()) {
+      return this.convoluted(integerKernel.get(), into);
+    }
+
     // horizontal and vertical kernal radii
     final var hkr = (kernal.w - 1) / 2;
     final var vkr = (kernal.h - 1) / 2;
     // copies into new picture
-    final var result = new Picture(this);
+    System.arraycopy(this.data(), 0, into.data(), 0, this.data().length);
 
     for (var x = 0; x < this.getWidth() - kernal.w + 1; x++) {
+      Deadline.checkpoint();
       for (var y = 0; y < this.getHeight() - kernal.h + 1; y++) {
         var r = 0.0; // had to do this all separately so I didn't have to
         var g = 0.0; // make a Color class that used Doubles, because
@@ -344,11 +635,95 @@ public class Picture {
         }
         // these 0.01 values make sure the floating point errors dont change what it's rounded to
         final var c = new Color((int) (r + 0.01), (int) (g + 0.01), (int) (b + 0.01));
-        result.setPixel(x + hkr, y + vkr, c);
+        into.setPixel(x + hkr, y + vkr, c);
       }
     }
 
-    return result;
+    return into;
+  }
+
+  /**
+   * Integer only version of {@link #convoluted(Matrix, Picture)}, giving exactly the same result.
+   */
+  private Picture convoluted(IntegerKernel kernel, Picture into) {
+    // horizontal and vertical kernal radii
+    final var hkr = (kernel.w - 1) / 2;
+    final var vkr = (kernel.h - 1) / 2;
+    final var w = this.getWidth();
+
+    final var src = this.data();
+    final var dst = into.data();
+    // the border keeps its original values
+    System.arraycopy(src, 0, dst, 0, src.length);
+
+    for (var y = 0; y < this.getHeight() - kernel.h + 1; y++) {
+      Deadline.checkpoint();
+      for (var x = 0; x < w - kernel.w + 1; x++) {
+        var r = 0;
+        var g = 0;
+        var b = 0;
+        for (var ky = 0; ky < kernel.h; ky++) {
+          final var row = (y + ky) * w + x;
+          for (var kx = 0; kx < kernel.w; kx++) {
+            final var n = kernel.numerators[ky][kx];
+            final var rgb = src[row + kx];
+            r += n * ((rgb >> 16) & 0xff);
+            g += n * ((rgb >> 8) & 0xff);
+            b += n * (rgb & 0xff);
+          }
+        }
+        dst[(y + vkr) * w + x + hkr] = packed(kernel.round(r), kernel.round(g), kernel.round(b));
+      }
+    }
+
+    return into;
+  }
+
+  /**
+   * Shrinks bright areas: every channel becomes its minimum over the square of the given radius.
+   */
+  public Picture eroded(int radius) {
+    final var planar = new PlanarPicture(this);
+    planar.erode(radius);
+    return planar.toPicture();
+  }
+
+  /**
+   * Grows bright areas: every channel becomes its maximum over the square of the given radius.
+   */
+  public Picture dilated(int radius) {
+    final var planar = new PlanarPicture(this);
+    planar.dilate(radius);
+    return planar.toPicture();
+  }
+
+  /**
+   * Erodes then dilates, removing bright specks smaller than the square of the given radius.
+   */
+  public Picture opened(int radius) {
+    final var planar = new PlanarPicture(this);
+    planar.erode(radius);
+    planar.dilate(radius);
+    return planar.toPicture();
+  }
+
+  /**
+   * Dilates then erodes, filling dark specks smaller than the square of the given radius.
+   */
+  public Picture closed(int radius) {
+    final var planar = new PlanarPicture(this);
+    planar.dilate(radius);
+    planar.erode(radius);
+    return planar.toPicture();
+  }
+
+  /**
+   * Every channel becomes its median over the square of the given radius.
+   */
+  public Picture medianFiltered(int radius) {
+    final var planar = new PlanarPicture(this);
+    planar.median(radius);
+    return planar.toPicture();
   }
 
 //  public Picture meanBlurred() {
@@ -360,8 +735,13 @@ public class Picture {
 //  }
 
   public Picture blended(Stream<Picture> pictures) {
-    final var result = new Picture(this.getWidth(), this.getHeight());
+    return this.blended(pictures, new Picture(this.getWidth(), this.getHeight()));
+  }
 
+  /**
+   * Writes the blended picture into a picture of the same size, which may be this one.
+   */
+  Picture blended(Stream<Picture> pictures, Picture into) {
     // how frustrating having to make a stream into an array just to iterate over it!
     // I would love feedback on how to iterate over the stream without copying it.
     // .forEach seems to have some weird limitation about side effects in the function
@@ -371,16 +751,68 @@ public class Picture {
     final var pictureArray = pictures.toArray(Picture[]::new);
     final var n = pictureArray.length + 1;
 
+    if (FixedPoint.reproducesDouble(n)) {
+      return this.blendedExactly(pictureArray, into);
+    }
+
     for (var x = 0; x < this.getWidth(); x++) {
+      Deadline.checkpoint();
       for (var y = 0; y < this.getHeight(); y++) {
         var total = this.getPixel(x, y);
         for (final var picture : pictureArray) {
           total = total.add(picture.getPixel(x, y));
         }
-        result.setPixel(x, y, total.multiply(1.0 / n));
+        into.setPixel(x, y, total.multiply(1.0 / n));
       }
     }
 
-    return result;
+    return into;
+  }
+
+  /**
+   * Integer only version of {@link #blended(Stream, Picture)}, giving exactly the same result.
+   * Pixels outside of a smaller picture count as black, as they do for {@link #getPixel(int,
+   * int)}.
+   */
+  private Picture blendedExactly(Picture[] pictures, Picture into) {
+    final var w = this.getWidth();
+    final var h = this.getHeight();
+    final var n = pictures.length + 1;
+    final var src = this.data();
+    final var dst = into.data();
+
+    for (var y = 0; y < h; y++) {
+      Deadline.checkpoint();
+      for (var x = 0; x < w; x++) {
+        // every picture is read at this pixel before it is written, so into can be this one
+        final var rgb = src[y * w + x];
+        var r = (rgb >> 16) & 0xff;
+        var g = (rgb >> 8) & 0xff;
+        var b = rgb & 0xff;
+        for (final var picture : pictures) {
+          if (x < picture.getWidth() && y < picture.getHeight()) {
+            final var other = picture.data()[y * picture.getWidth() + x];
+            r += (other >> 16) & 0xff;
+            g += (other >> 8) & 0xff;
+            b += other & 0xff;
+          }
+        }
+        dst[y * w + x] = packed(
+            FixedPoint.truncate(r, n),
+            FixedPoint.truncate(g, n),
+            FixedPoint.truncate(b, n)
+        );
+      }
+    }
+
+    return into;
+  }
+
+  /**
+   * Packs colour components into an RGB int, keeping only the low 8 bits of each like {@link
+   * #setPixel(int, int, Color)} does.
+   */
+  static int packed(int red, int green, int blue) {
+    return 0xff000000 | ((0xff & red) << 16) | ((0xff & green) << 8) | (0xff & blue);
   }
 }
@@ -2,76 +2,307 @@ package picture;
 
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.stream.Stream;
+import java.util.Optional;
+import java.util.Set;
+import java.util.function.Consumer;
 
 public class PictureProcessor {
 
+  // the path that means stdin for the input and stdout for the output
+  private static final String STANDARD_STREAM = "-";
+
+  // commands that can run on a PlanarPicture
+  private static final Set<String> PLANAR_COMMANDS =
+      Set.of("blur", "erode", "dilate", "open", "close", "median");
+  // runs of at least this many blurs are done in planar form
+  private static final int PLANAR_MIN_CONVOLUTIONS = 2;
+
   public static void main(String[] args) throws RuntimeException {
 //    args = new String[]{"blur", "images/sunset64x32.png", "out/test.png"};
 
+    final var arguments = new ArrayList<String>(Arrays.asList(args));
+    final var options = Options.parse(arguments);
+
+    if (options.worker) {
+      TileWorker.serve();
+      return;
+    }
+    if (!arguments.isEmpty() && arguments.get(0).equals("bench")) {
+      Bench.run(options, arguments.subList(1, arguments.size()));
+      return;
+    }
+
     // java pls add array destructuring
-    final var commands = new ArrayList<String>(Arrays.asList(
-        Arrays.copyOfRange(args, 0, args.length - 2)
-    ));
-    final var inputPath = args[args.length - 2];
-    final var outputPath = args[args.length - 1];
+    final var commands = new ArrayList<String>(arguments.subList(0, arguments.size() - 2));
+    final var inputPath = arguments.get(arguments.size() - 2);
+    final var outputPath = arguments.get(arguments.size() - 1);
 
-    final var inputPicture = new Picture(inputPath);
+    final var metrics = new Metrics();
+    final var pool = new RasterPool();
 
-    final var outputPicture = proccessCommands(inputPicture, commands);
+    run(options, commands, inputPath, outputPath, pool, metrics);
 
-    outputPicture.saveAs(outputPath);
+    if (options.metrics) {
+      metrics.report(System.err, pool);
+    }
   }
 
-  private static Picture proccessCommands(Picture inputPicture, ArrayList<String> commands) {
-    // base case:
-    if (commands.isEmpty()) {
-      return inputPicture;
-    }
+  /**
+   * Loads the input, runs the commands over it and saves the output, all within the deadline
+   * given by the options. This is one whole job of the PictureProcessor, as run by main for the
+   * command line and by {@link Bench} for each of its jobs.
+   */
+  static void run(Options options, ArrayList<String> commands, String inputPath,
+      String outputPath, RasterPool pool, Metrics metrics) {
+    final var deadline = options.deadlineMillis >= 0
+        ? Deadline.after(options.deadlineMillis)
+        : Deadline.NONE;
 
-    // ingests the commands
-    final var command = commands.remove(0);
-
-    final Picture outputPicture = switch (command) {
-      case "invert" -> inputPicture.inverted();
-      case "grayscale" -> inputPicture.grayscaled();
-      case "rotate" -> inputPicture.rotated(Double.parseDouble(commands.remove(0)));
-      case "flip" -> inputPicture.transformed(switch (commands.remove(0)) {
-        case "H" -> new Matrix(2, 2, new Double[][]{
-            new Double[]{-1.0, 0.0},
-            new Double[]{0.0, 1.0}
-        });
-        case "V" -> new Matrix(2, 2, new Double[][]{
-            new Double[]{1.0, 0.0},
-            new Double[]{0.0, -1.0}
-        });
-        default -> throw new RuntimeException("Invalid flip direction");
-      });
-      case "blend" -> inputPicture.blended(
-          commands.stream().map(path -> new Picture(path))
+    deadline.run(() -> {
+      var start = System.nanoTime();
+      var inputPicture = inputPath.equals(STANDARD_STREAM)
+          ? new Picture(System.in)
+          : new Picture(inputPath);
+      metrics.record("load", start);
+
+      // previews a smaller picture rather than miss the deadline
+      var factor = 1;
+      if (options.degrade && deadline != Deadline.NONE) {
+        final var format = outputPath.equals(STANDARD_STREAM)
+            ? options.format
+            : RasterFormat.ofPath(outputPath);
+        factor = CostModel.previewFactor(commands, inputPicture.getWidth(),
+            inputPicture.getHeight(), format, deadline.remainingNanos());
+        if (factor > 1) {
+          start = System.nanoTime();
+          inputPicture = inputPicture.downscaled(factor);
+          metrics.record("downscale", start);
+        }
+      }
+
+      final var outputPicture = options.workers > 0
+          ? sharded(inputPicture, commands, options, metrics, factor)
+          : proccessCommands(inputPicture, commands, pool, metrics, factor);
+
+      start = System.nanoTime();
+      saved(outputPicture, outputPath, options);
+      metrics.record("save", start);
+      return outputPicture;
+    });
+  }
+
+  /**
+   * Saves the picture to the path, or to stdout for "-", as an indexed PNG if the options ask for
+   * one and it can be done.
+   */
+  private static void saved(Picture picture, String path, Options options) {
+    if (path.equals(STANDARD_STREAM)) {
+      final var palette = options.format == RasterFormat.PNG
+          ? palette(picture, options)
+          : Optional.<Palette>empty();
+      palette.ifPresentOrElse(
+          p -> picture.saveAs(System.out, p),
+          () -> picture.saveAs(System.out, options.format)
       );
-      case "blur" -> inputPicture.convoluted(new Matrix(3, 3, new Double[][]{
-          new Double[]{1.0, 1.0, 1.0},
-          new Double[]{1.0, 1.0, 1.0},
-          new Double[]{1.0, 1.0, 1.0}
-      }).normalised());
-      case "matrix" -> inputPicture.transformed(new Matrix(2, 2, new Double[][]{
-          new Double[]{
-              Double.parseDouble(commands.remove(0)),
-              Double.parseDouble(commands.remove(0))
-          },
-          new Double[]{
-              Double.parseDouble(commands.remove(0)),
-              Double.parseDouble(commands.remove(0))
-          },
-      }));
-      default -> throw new RuntimeException("Invalid command: " + command);
-    };
+    } else {
+      final var palette = RasterFormat.ofPath(path) == RasterFormat.PNG
+          ? palette(picture, options)
+          : Optional.<Palette>empty();
+      palette.ifPresentOrElse(
+          p -> picture.saveAs(path, p),
+          () -> picture.saveAs(path)
+      );
+    }
+  }
+
+  private static Optional<Palette> palette(Picture picture, Options options) {
+    if (options.quantise > 0) {
+      return Optional.of(Palette.quantised(picture, options.quantise));
+    }
+    if (options.indexed) {
+      return Palette.exact(picture, Palette.MAX_COLOURS);
+    }
+    return Optional.empty();
+  }
 
-    if (command == "blend") {
-      commands = new ArrayList<>();
+  /**
+   * Runs the commands across worker processes, or in this one if some command can't be run on
+   * tiles. The picture is a preview shrunk by the given factor, which only matters to the commands
+   * that load more pictures, and those can't be run on tiles.
+   */
+  static Picture sharded(Picture picture, ArrayList<String> commands, Options options,
+      Metrics metrics, int previewFactor) {
+    if (TileCoordinator.haloRadius(commands).isEmpty()) {
+      System.err.println("Can't split these commands into tiles, so running them here instead");
+      return proccessCommands(picture, commands, new RasterPool(), metrics, previewFactor);
     }
 
-    return proccessCommands(outputPicture, commands);
+    final var start = System.nanoTime();
+    final var result = new TileCoordinator(
+        options.workers, options.tileSize, options.workerTimeoutMillis)
+        .process(picture, commands);
+    metrics.record("sharded", start);
+    return result;
+  }
+
+  /**
+   * Runs the commands over the picture one stage at a time. Each stage writes into a picture
+   * borrowed from the pool (or straight back into its input for pointwise commands) and gives its
+   * input back to the pool once it is done with it.
+   */
+  static Picture proccessCommands(
+      Picture inputPicture, ArrayList<String> commands, RasterPool pool, Metrics metrics) {
+    return proccessCommands(inputPicture, commands, pool, metrics, 1);
+  }
+
+  /**
+   * Runs the commands over a preview of the picture shrunk by the given factor, shrinking any
+   * pictures the commands load to match.
+   */
+  static Picture proccessCommands(Picture inputPicture, ArrayList<String> commands,
+      RasterPool pool, Metrics metrics, int previewFactor) {
+    var picture = inputPicture;
+
+    while (!commands.isEmpty()) {
+      final var start = System.nanoTime();
+
+      // ingests the commands
+      final var command = commands.remove(0);
+
+      final Picture outputPicture = switch (command) {
+        // pointwise commands don't need a second picture
+        case "invert" -> picture.inverted(picture);
+        case "grayscale" -> picture.grayscaled(picture);
+        case "equalize" -> picture.equalized(picture);
+        case "autolevels" -> picture.autoLevelled(picture);
+        case "rotate" -> rotated(picture, Double.parseDouble(commands.remove(0)), pool);
+        case "flip" -> transformed(picture, switch (commands.remove(0)) {
+          case "H" -> new Matrix(2, 2, new Double[][]{
+              new Double[]{-1.0, 0.0},
+              new Double[]{0.0, 1.0}
+          });
+          case "V" -> new Matrix(2, 2, new Double[][]{
+              new Double[]{1.0, 0.0},
+              new Double[]{0.0, -1.0}
+          });
+          default -> throw new RuntimeException("Invalid flip direction");
+        }, pool);
+        case "blend" -> blended(picture, commands, pool, previewFactor);
+        case "blur", "erode", "dilate", "open", "close", "median" ->
+            planar(picture, command, commands, pool);
+        case "matrix" -> transformed(picture, new Matrix(2, 2, new Double[][]{
+            new Double[]{
+                Double.parseDouble(commands.remove(0)),
+                Double.parseDouble(commands.remove(0))
+            },
+            new Double[]{
+                Double.parseDouble(commands.remove(0)),
+                Double.parseDouble(commands.remove(0))
+            },
+        }), pool);
+        default -> throw new RuntimeException("Invalid command: " + command);
+      };
+
+      if (outputPicture != picture) {
+        pool.release(picture);
+      }
+      picture = outputPicture;
+
+      metrics.record(command, start);
+    }
+
+    return picture;
+  }
+
+  private static Picture transformed(Picture picture, Matrix transformation, RasterPool pool) {
+    final var size = picture.transformedSize(transformation);
+    return picture.transformed(transformation, pool.borrow(size.width, size.height));
+  }
+
+  private static Picture rotated(Picture picture, Double angle, RasterPool pool) {
+    final var size = picture.transformedSize(Matrix.rotate(angle));
+    return picture.rotated(angle, pool.borrow(size.width, size.height));
+  }
+
+  /**
+   * Blends the picture with the pictures at every remaining path, consuming all the commands.
+   */
+  private static Picture blended(
+      Picture picture, ArrayList<String> commands, RasterPool pool, int previewFactor) {
+    final var others = commands.stream()
+        .map(path -> previewFactor > 1
+            ? new Picture(path).downscaled(previewFactor)
+            : new Picture(path))
+        .toArray(Picture[]::new);
+    commands.clear();
+
+    picture.blended(Arrays.stream(others), picture);
+
+    for (final var other : others) {
+      pool.release(other);
+    }
+    return picture;
+  }
+
+  private static Matrix blurKernel() {
+    return new Matrix(3, 3, new Double[][]{
+        new Double[]{1.0, 1.0, 1.0},
+        new Double[]{1.0, 1.0, 1.0},
+        new Double[]{1.0, 1.0, 1.0}
+    }).normalised();
+  }
+
+  /**
+   * Runs the current command and every command straight after it that can also work on planar
+   * pictures, consuming them all. The picture is converted into planar form once, every command
+   * is run there, and it is only packed back into a Picture at the end. A lone blur is left to
+   * {@link Picture#convoluted(Matrix)} since it isn't worth converting for.
+   */
+  private static Picture planar(
+      Picture picture, String command, ArrayList<String> commands, RasterPool pool) {
+    final var steps = new ArrayList<Consumer<PlanarPicture>>();
+    steps.add(planarStep(command, commands));
+    while (!commands.isEmpty() && PLANAR_COMMANDS.contains(commands.get(0))) {
+      steps.add(planarStep(commands.remove(0), commands));
+    }
+
+    if (command.equals("blur") && steps.size() < PLANAR_MIN_CONVOLUTIONS) {
+      return picture.convoluted(
+          blurKernel(), pool.borrow(picture.getWidth(), picture.getHeight()));
+    }
+
+    final var planar = new PlanarPicture(picture);
+    for (final var step : steps) {
+      step.accept(planar);
+    }
+    // the planes hold everything now, so the input can be packed over
+    return planar.toPicture(picture);
+  }
+
+  private static Consumer<PlanarPicture> planarStep(String command, ArrayList<String> commands) {
+    if (command.equals("blur")) {
+      final var kernel = blurKernel();
+      return planar -> planar.convolve(kernel);
+    }
+
+    final var radius = Integer.parseInt(commands.remove(0));
+    if (radius < 0) {
+      throw new RuntimeException("Invalid radius: " + radius);
+    }
+
+    return switch (command) {
+      case "erode" -> planar -> planar.erode(radius);
+      case "dilate" -> planar -> planar.dilate(radius);
+      case "open" -> planar -> {
+        planar.erode(radius);
+        planar.dilate(radius);
+      };
+      case "close" -> planar -> {
+        planar.dilate(radius);
+        planar.erode(radius);
+      };
+      case "median" -> planar -> planar.median(radius);
+      default -> throw new RuntimeException("Invalid command: " + command);
+    };
   }
 }
@@ -0,0 +1,223 @@
+package picture;
+
+import java.util.Arrays;
+
+/**
+ * A planar (structure-of-arrays) working copy of a Picture. The red, green and blue channels are
+ * held in separate contiguous planes, so a run of convolutions and window filters can work on
+ * plain arrays without unpacking every tap, and the result is only packed back into a Picture
+ * once at the end.
+ */
+class PlanarPicture {
+
+  private final int width;
+  private final int height;
+
+  private short[] red;
+  private short[] green;
+  private short[] blue;
+
+  // convolutions write into these and then swap them with the live planes
+  private short[] nextRed;
+  private short[] nextGreen;
+  private short[] nextBlue;
+
+  // the window filters' intermediate pass, only allocated once one is run
+  private short[] scratch;
+
+  PlanarPicture(Picture picture) {
+    this.width = picture.getWidth();
+    this.height = picture.getHeight();
+
+    final var size = width * height;
+    this.red = new short[size];
+    this.green = new short[size];
+    this.blue = new short[size];
+    this.nextRed = new short[size];
+    this.nextGreen = new short[size];
+    this.nextBlue = new short[size];
+
+    final var rgbs = picture.data();
+    for (var i = 0; i < size; i++) {
+      red[i] = (short) ((rgbs[i] >> 16) & 0xff);
+      green[i] = (short) ((rgbs[i] >> 8) & 0xff);
+      blue[i] = (short) (rgbs[i] & 0xff);
+    }
+  }
+
+  int getWidth() {
+    return width;
+  }
+
+  int getHeight() {
+    return height;
+  }
+
+  /**
+   * Convolves this picture in place with the given kernal. Produces exactly the same pixels as
+   * {@link Picture#convoluted(Matrix)}: the border the kernal can't reach is left untouched.
+   */
+  void convolve(Matrix kernal) {
+    // check: kernal has a middle
+    assert (kernal.h % 2 == 1 && kernal.w % 2 == 1);
+
+    // most kernals (like the normalised blur) can be done exactly in integers
+    final var integerKernel = IntegerKernel.of(kernal);
+    if (integerKernel.isPresent()) {
+      final var accumulator = new int[Math.max(width - kernal.w + 1, 0)];
+
+      convolvePlane(red, nextRed, integerKernel.get(), accumulator);
+      convolvePlane(green, nextGreen, integerKernel.get(), accumulator);
+      convolvePlane(blue, nextBlue, integerKernel.get(), accumulator);
+
+      swapPlanes();
+      return;
+    }
+
+    // unboxes the kernal once rather than once per tap
+    final var weights = new double[kernal.h][kernal.w];
+    for (var ky = 0; ky < kernal.h; ky++) {
+      for (var kx = 0; kx < kernal.w; kx++) {
+        weights[ky][kx] = kernal.vals[ky][kx];
+      }
+    }
+    final var accumulator = new double[Math.max(width - kernal.w + 1, 0)];
+
+    convolvePlane(red, nextRed, weights, accumulator);
+    convolvePlane(green, nextGreen, weights, accumulator);
+    convolvePlane(blue, nextBlue, weights, accumulator);
+
+    swapPlanes();
+  }
+
+  private void convolvePlane(short[] src, short[] dst, double[][] weights, double[] acc) {
+    final var kw = weights[0].length;
+    final var kh = weights.length;
+    // horizontal and vertical kernal radii
+    final var hkr = (kw - 1) / 2;
+    final var vkr = (kh - 1) / 2;
+
+    // the border keeps its original values
+    System.arraycopy(src, 0, dst, 0, src.length);
+
+    for (var y = 0; y < height - kh + 1; y++) {
+      Deadline.checkpoint();
+      Arrays.fill(acc, 0.0);
+      // taps are summed in the same order as Picture.convoluted so the rounding is identical,
+      // but each tap sweeps a whole row, which keeps the inner loop contiguous
+      for (var kx = 0; kx < kw; kx++) {
+        for (var ky = 0; ky < kh; ky++) {
+          final var k = weights[ky][kx];
+          final var row = (y + ky) * width + kx;
+          for (var x = 0; x < acc.length; x++) {
+            acc[x] += k * src[row + x];
+          }
+        }
+      }
+      final var out = (y + vkr) * width + hkr;
+      for (var x = 0; x < acc.length; x++) {
+        // same 0.01 nudge and 8 bit wrap as Picture.convoluted and Picture.setPixel
+        dst[out + x] = (short) ((int) (acc[x] + 0.01) & 0xff);
+      }
+    }
+  }
+
+  private void convolvePlane(short[] src, short[] dst, IntegerKernel kernel, int[] acc) {
+    // horizontal and vertical kernal radii
+    final var hkr = (kernel.w - 1) / 2;
+    final var vkr = (kernel.h - 1) / 2;
+
+    // the border keeps its original values
+    System.arraycopy(src, 0, dst, 0, src.length);
+
+    for (var y = 0; y < height - kernel.h + 1; y++) {
+      Deadline.checkpoint();
+      Arrays.fill(acc, 0);
+      for (var ky = 0; ky < kernel.h; ky++) {
+        for (var kx = 0; kx < kernel.w; kx++) {
+          final var n = kernel.numerators[ky][kx];
+          final var row = (y + ky) * width + kx;
+          for (var x = 0; x < acc.length; x++) {
+            acc[x] += n * src[row + x];
+          }
+        }
+      }
+      final var out = (y + vkr) * width + hkr;
+      for (var x = 0; x < acc.length; x++) {
+        dst[out + x] = (short) (kernel.round(acc[x]) & 0xff);
+      }
+    }
+  }
+
+  /**
+   * Replaces every pixel in place with the minimum of each channel over the square of the given
+   * radius around it.
+   */
+  void erode(int radius) {
+    Morphology.minimum(red, nextRed, scratch(), width, height, radius);
+    Morphology.minimum(green, nextGreen, scratch(), width, height, radius);
+    Morphology.minimum(blue, nextBlue, scratch(), width, height, radius);
+    swapPlanes();
+  }
+
+  /**
+   * Replaces every pixel in place with the maximum of each channel over the square of the given
+   * radius around it.
+   */
+  void dilate(int radius) {
+    Morphology.maximum(red, nextRed, scratch(), width, height, radius);
+    Morphology.maximum(green, nextGreen, scratch(), width, height, radius);
+    Morphology.maximum(blue, nextBlue, scratch(), width, height, radius);
+    swapPlanes();
+  }
+
+  /**
+   * Replaces every pixel in place with the median of each channel over the square of the given
+   * radius around it.
+   */
+  void median(int radius) {
+    Morphology.median(red, nextRed, width, height, radius);
+    Morphology.median(green, nextGreen, width, height, radius);
+    Morphology.median(blue, nextBlue, width, height, radius);
+    swapPlanes();
+  }
+
+  private short[] scratch() {
+    if (scratch == null) {
+      scratch = new short[width * height];
+    }
+    return scratch;
+  }
+
+  private void swapPlanes() {
+    var tmp = red;
+    red = nextRed;
+    nextRed = tmp;
+
+    tmp = green;
+    green = nextGreen;
+    nextGreen = tmp;
+
+    tmp = blue;
+    blue = nextBlue;
+    nextBlue = tmp;
+  }
+
+  /**
+   * Packs the planes back into a new interleaved Picture.
+   */
+  Picture toPicture() {
+    return this.toPicture(new Picture(width, height));
+  }
+
+  /**
+   * Packs the planes back into a Picture of the same size.
+   */
+  Picture toPicture(Picture into) {
+    final var rgbs = into.data();
+    for (var i = 0; i < rgbs.length; i++) {
+      rgbs[i] = 0xff000000 | (red[i] << 16) | (green[i] << 8) | blue[i];
+    }
+    return into;
+  }
+}
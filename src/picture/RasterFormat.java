@@ -0,0 +1,64 @@
+package picture;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * The file formats pictures can be read from and saved as. Apart from PNG these are all
+ * uncompressed, so passing pictures between processes costs little more than copying them.
+ */
+public enum RasterFormat {
+  PNG("png"),
+  // binary netpbm RGB
+  PPM("ppm"),
+  // netpbm arbitrary map, read as grayscale or RGB with or without alpha, saved as RGB
+  PAM("pam"),
+  // packed ints behind a 16 byte header, so the pixels can be memory mapped (see RawRaster)
+  RAW("raw");
+
+  final String extension;
+
+  RasterFormat(String extension) {
+    this.extension = extension;
+  }
+
+  /**
+   * Returns the format named by the extension of the path, which is PNG for anything unknown.
+   */
+  static RasterFormat ofPath(String path) {
+    final var dot = path.lastIndexOf('.');
+    final var extension = dot < 0 ? "" : path.substring(dot + 1).toLowerCase();
+    return Arrays.stream(values())
+        .filter(format -> format.extension.equals(extension))
+        .findFirst()
+        .orElse(PNG);
+  }
+
+  static RasterFormat ofName(String name) {
+    return Arrays.stream(values())
+        .filter(format -> format.extension.equalsIgnoreCase(name))
+        .findFirst()
+        .orElseThrow(() -> new RuntimeException("Invalid format: " + name));
+  }
+
+  /**
+   * Works out the format of a stream from its first few bytes, leaving the stream where it was.
+   */
+  static RasterFormat detect(BufferedInputStream in) throws IOException {
+    in.mark(RawRaster.MAGIC.length);
+    final var magic = in.readNBytes(RawRaster.MAGIC.length);
+    in.reset();
+
+    if (Arrays.equals(magic, RawRaster.MAGIC)) {
+      return RAW;
+    }
+    if (magic.length >= 2 && magic[0] == 'P' && magic[1] == '6') {
+      return PPM;
+    }
+    if (magic.length >= 2 && magic[0] == 'P' && magic[1] == '7') {
+      return PAM;
+    }
+    return PNG;
+  }
+}
@@ -0,0 +1,74 @@
+package picture;
+
+import java.awt.Dimension;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A pool of pictures keyed by size. Pipeline stages borrow the picture they write their output
+ * into and give back the input they have finished with, instead of allocating a new raster for
+ * every stage. Since only one picture is in flight between stages, a run of stages of the same
+ * size ends up ping-ponging between the same two rasters.
+ *
+ * <p>Borrowed pictures hold whatever the last user left in them. A pool belongs to a single
+ * pipeline and is not thread safe.
+ */
+class RasterPool {
+
+  private final Map<Dimension, ArrayDeque<Picture>> free = new HashMap<>();
+
+  private long borrowed = 0;
+  private long reused = 0;
+  private long allocatedBytes = 0;
+  private long released = 0;
+
+  Picture borrow(int width, int height) {
+    borrowed++;
+
+    final var pictures = free.get(new Dimension(width, height));
+    if (pictures != null && !pictures.isEmpty()) {
+      reused++;
+      return pictures.pop();
+    }
+
+    allocatedBytes += (long) width * height * Integer.BYTES;
+    return new Picture(width, height);
+  }
+
+  void release(Picture picture) {
+    released++;
+
+    free.computeIfAbsent(
+        new Dimension(picture.getWidth(), picture.getHeight()),
+        size -> new ArrayDeque<>()
+    ).push(picture);
+  }
+
+  long getBorrowed() {
+    return borrowed;
+  }
+
+  long getReused() {
+    return reused;
+  }
+
+  long getAllocatedBytes() {
+    return allocatedBytes;
+  }
+
+  long getReleased() {
+    return released;
+  }
+
+  @Override
+  public String toString() {
+    return "RasterPool{" +
+        "borrowed=" + borrowed +
+        ", reused=" + reused +
+        ", allocated=" + (borrowed - reused) +
+        ", allocatedBytes=" + allocatedBytes +
+        ", released=" + released +
+        '}';
+  }
+}
@@ -0,0 +1,266 @@
+package picture;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Reads and writes the uncompressed formats: binary PPM, PAM, and RAW.
+ *
+ * <p>RAW is a 16 byte header (the magic <tt>RAW1</tt>, then the width, the height and a reserved
+ * zero as big endian ints) followed by every pixel as a big endian 0xffRRGGBB int, row by row.
+ * As the header keeps the pixels aligned to their size, a RAW file is read by memory mapping it
+ * and bulk copying the pixels straight into the picture's raster.
+ */
+final class RawRaster {
+
+  static final byte[] MAGIC = "RAW1".getBytes(StandardCharsets.US_ASCII);
+  private static final int HEADER_BYTES = 16;
+
+  private RawRaster() {
+  }
+
+  static BufferedImage read(InputStream in, RasterFormat format) throws IOException {
+    return switch (format) {
+      case PPM -> readPPM(in);
+      case PAM -> readPAM(in);
+      case RAW -> readRaw(in);
+      default -> throw new IllegalArgumentException("Not an uncompressed format: " + format);
+    };
+  }
+
+  static void write(Picture picture, OutputStream out, RasterFormat format) throws IOException {
+    switch (format) {
+      case PPM -> writeNetpbm(picture, out,
+          "P6\n" + picture.getWidth() + " " + picture.getHeight() + "\n255\n");
+      case PAM -> writeNetpbm(picture, out, "P7\n"
+          + "WIDTH " + picture.getWidth() + "\n"
+          + "HEIGHT " + picture.getHeight() + "\n"
+          + "DEPTH 3\nMAXVAL 255\nTUPLTYPE RGB\nENDHDR\n");
+      case RAW -> {
+        final var bytes = ByteBuffer.allocate(HEADER_BYTES + picture.data().length * Integer.BYTES);
+        putRaw(picture, bytes);
+        out.write(bytes.array());
+      }
+      default -> throw new IllegalArgumentException("Not an uncompressed format: " + format);
+    }
+  }
+
+  /**
+   * Reads a RAW file by memory mapping it.
+   */
+  static BufferedImage mapRaw(Path path) throws IOException {
+    try (final var channel = FileChannel.open(path, StandardOpenOption.READ)) {
+      final var mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      final var size = rawHeader(mapped);
+      if (channel.size() < HEADER_BYTES + (long) Integer.BYTES * size[0] * size[1]) {
+        throw new IOException("RAW data ends early");
+      }
+      final var image = newImage(size);
+      mapped.position(HEADER_BYTES);
+      mapped.asIntBuffer().get(data(image));
+      return image;
+    }
+  }
+
+  /**
+   * Writes a RAW file through a memory mapping of it.
+   */
+  static void mapRaw(Picture picture, Path path) throws IOException {
+    try (final var channel = FileChannel.open(path, StandardOpenOption.READ,
+        StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+        StandardOpenOption.TRUNCATE_EXISTING)) {
+      final var size = HEADER_BYTES + (long) picture.data().length * Integer.BYTES;
+      putRaw(picture, channel.map(FileChannel.MapMode.READ_WRITE, 0, size));
+    }
+  }
+
+  private static void putRaw(Picture picture, ByteBuffer bytes) {
+    bytes.put(MAGIC)
+        .putInt(picture.getWidth())
+        .putInt(picture.getHeight())
+        .putInt(0);
+
+    final var ints = bytes.asIntBuffer();
+    for (final var rgb : picture.data()) {
+      // rasters don't always keep the top byte set, but the file does
+      ints.put(0xff000000 | rgb);
+    }
+  }
+
+  private static BufferedImage readRaw(InputStream in) throws IOException {
+    final var header = ByteBuffer.wrap(in.readNBytes(HEADER_BYTES));
+    final var image = newImage(rawHeader(header));
+
+    final var bytes = in.readNBytes(data(image).length * Integer.BYTES);
+    if (bytes.length < data(image).length * Integer.BYTES) {
+      throw new IOException("RAW data ends early");
+    }
+    ByteBuffer.wrap(bytes).asIntBuffer().get(data(image));
+    return image;
+  }
+
+  // returns the width and height from a RAW header
+  private static int[] rawHeader(ByteBuffer header) throws IOException {
+    final var magic = new byte[MAGIC.length];
+    if (header.remaining() < HEADER_BYTES) {
+      throw new IOException("RAW header ends early");
+    }
+    header.get(magic);
+    if (!Arrays.equals(magic, MAGIC)) {
+      throw new IOException("Not a RAW file");
+    }
+    return new int[]{header.getInt(), header.getInt()};
+  }
+
+  private static BufferedImage readPPM(InputStream in) throws IOException {
+    final var header = new NetpbmHeader(in);
+    header.expect("P6");
+    final var width = header.number();
+    final var height = header.number();
+    final var maxval = header.number();
+    // the single whitespace byte after maxval has already been read, so the pixels are next
+
+    return readSamples(in, new int[]{width, height}, 3, maxval);
+  }
+
+  private static BufferedImage readPAM(InputStream in) throws IOException {
+    final var header = new NetpbmHeader(in);
+    header.expect("P7");
+
+    final var fields = new HashMap<String, String>();
+    for (var token = header.token(); !token.equals("ENDHDR"); token = header.token()) {
+      fields.put(token, header.token());
+    }
+    for (final var field : new String[]{"WIDTH", "HEIGHT", "DEPTH", "MAXVAL"}) {
+      if (!fields.containsKey(field)) {
+        throw new IOException("PAM header has no " + field);
+      }
+    }
+
+    return readSamples(
+        in,
+        new int[]{Integer.parseInt(fields.get("WIDTH")), Integer.parseInt(fields.get("HEIGHT"))},
+        Integer.parseInt(fields.get("DEPTH")),
+        Integer.parseInt(fields.get("MAXVAL")));
+  }
+
+  /**
+   * Reads one byte samples, depth of them per pixel: gray, gray and alpha, RGB, or RGB and alpha.
+   * Alpha is dropped, and samples are scaled up if maxval is less than 255.
+   */
+  private static BufferedImage readSamples(InputStream in, int[] size, int depth, int maxval)
+      throws IOException {
+    if (maxval < 1 || maxval > 255) {
+      throw new IOException("Only 8 bit samples are supported, not maxval " + maxval);
+    }
+    if (depth < 1 || depth > 4) {
+      throw new IOException("Unsupported depth " + depth);
+    }
+
+    final var image = newImage(size);
+    final var data = data(image);
+    final var bytes = in.readNBytes(data.length * depth);
+    if (bytes.length < data.length * depth) {
+      throw new IOException("Pixel data ends early");
+    }
+
+    final var colour = depth >= 3;
+    for (var i = 0; i < data.length; i++) {
+      final var at = i * depth;
+      final var r = scaled(bytes[at], maxval);
+      final var g = colour ? scaled(bytes[at + 1], maxval) : r;
+      final var b = colour ? scaled(bytes[at + 2], maxval) : r;
+      data[i] = Picture.packed(r, g, b);
+    }
+    return image;
+  }
+
+  private static int scaled(byte sample, int maxval) {
+    final var value = sample & 0xff;
+    return maxval == 255 ? value : (value * 255 + maxval / 2) / maxval;
+  }
+
+  private static void writeNetpbm(Picture picture, OutputStream out, String header)
+      throws IOException {
+    final var data = picture.data();
+    final var bytes = new byte[data.length * 3];
+    for (var i = 0; i < data.length; i++) {
+      bytes[3 * i] = (byte) (data[i] >> 16);
+      bytes[3 * i + 1] = (byte) (data[i] >> 8);
+      bytes[3 * i + 2] = (byte) data[i];
+    }
+
+    out.write(header.getBytes(StandardCharsets.US_ASCII));
+    out.write(bytes);
+  }
+
+  private static BufferedImage newImage(int[] size) throws IOException {
+    if (size[0] <= 0 || size[1] <= 0) {
+      throw new IOException("Invalid size " + size[0] + "x" + size[1]);
+    }
+    return new BufferedImage(size[0], size[1], BufferedImage.TYPE_INT_RGB);
+  }
+
+  private static int[] data(BufferedImage image) {
+    return ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+  }
+
+  /**
+   * Reads the whitespace separated, # commented tokens of a netpbm header a byte at a time, so
+   * that nothing past the header is read.
+   */
+  private static class NetpbmHeader {
+
+    private final InputStream in;
+
+    NetpbmHeader(InputStream in) {
+      this.in = in;
+    }
+
+    void expect(String magic) throws IOException {
+      final var token = token();
+      if (!token.equals(magic)) {
+        throw new IOException("Expected " + magic + " but found " + token);
+      }
+    }
+
+    int number() throws IOException {
+      return Integer.parseInt(token());
+    }
+
+    /**
+     * Returns the next token, consuming the single whitespace byte after it.
+     */
+    String token() throws IOException {
+      var c = in.read();
+      while (c == '#' || Character.isWhitespace(c)) {
+        if (c == '#') {
+          while (c != '\n' && c != -1) {
+            c = in.read();
+          }
+        }
+        c = in.read();
+      }
+      if (c == -1) {
+        throw new IOException("Header ends early");
+      }
+
+      final var token = new StringBuilder();
+      while (c != -1 && !Character.isWhitespace(c)) {
+        token.append((char) c);
+        c = in.read();
+      }
+      return token.toString();
+    }
+  }
+}
@@ -0,0 +1,146 @@
+package picture;
+
+import java.util.function.IntUnaryOperator;
+import java.util.stream.IntStream;
+
+/**
+ * Rotation by any angle as three shears (Paeth): horizontal, vertical, then horizontal again. Each
+ * shear only slides whole rows (or whole columns, by shearing the transpose) sideways, so every
+ * pass streams through memory in order and the rows can be done in parallel.
+ *
+ * <p>Pixels are moved without any blending, so the result can differ from {@link
+ * Picture#transformed(Matrix)} by a pixel along edges where rounding goes the other way.
+ */
+final class ShearRotation {
+
+  // the side of the square blocks the transposes are done in
+  private static final int TILE = 32;
+
+  private ShearRotation() {
+  }
+
+  /**
+   * Rotates the picture the same way as {@link Picture#rotated(Double)}, writing into a different
+   * picture of the size {@link Picture#transformedSize(Matrix)} gives for the rotation.
+   */
+  static Picture rotated(Picture picture, double angle, Picture into) {
+    var w = picture.getWidth();
+    var h = picture.getHeight();
+    var pixels = picture.data();
+
+    // Matrix.rotate turns points by -angle, anticlockwise with y pointing up
+    var turn = Math.IEEEremainder(-angle, 360);
+    // the shears are only well behaved up to a quarter turn, so anything more starts with a
+    // half turn, which is just the pixels in reverse
+    if (Math.abs(turn) > 90) {
+      pixels = reversed(pixels);
+      turn -= Math.signum(turn) * 180;
+    }
+    final var radians = turn * Math.PI / 180;
+    final var a = -Math.tan(radians / 2);
+    final var b = Math.sin(radians);
+
+    final var outW = into.getWidth();
+    final var outH = into.getHeight();
+
+    // first shear: x += a * y
+    final var w1 = w + (int) Math.ceil(Math.abs(a) * (h - 1)) + 2;
+    pixels = shearedRows(pixels, w, h, w1, h, a);
+    w = w1;
+
+    // second shear: y += b * x, done as a horizontal shear of the transpose
+    final var sheared = Math.max(h + (int) Math.ceil(Math.abs(b) * (w - 1)) + 2, outH);
+    // an even difference makes the rows of the last shear line up with the output's
+    final var h2 = sheared + (sheared - outH) % 2;
+    final var sourceHeight = h;
+    final var columnWidth = w;
+    final var transposed = shifted(
+        transposed(pixels, w, h), h, w, h2, w, 0,
+        x -> (int) Math.floor(
+            (sourceHeight - 1) / 2.0 - (h2 - 1) / 2.0 + b * (x - (columnWidth - 1) / 2.0) + 0.5));
+    pixels = transposed(transposed, h2, w);
+    h = h2;
+
+    // third shear: x += a * y again, cropping to the output
+    pixels = shearedRows(pixels, w, h, outW, outH, a);
+    System.arraycopy(pixels, 0, into.data(), 0, pixels.length);
+
+    return into;
+  }
+
+  /**
+   * Slides every row of src sideways by a * y (y being measured up from the middle row), putting
+   * the result in the middle of a dstW by dstH picture.
+   */
+  private static int[] shearedRows(int[] src, int srcW, int srcH, int dstW, int dstH, double a) {
+    final var rowOffset = (srcH - dstH) / 2;
+    return shifted(src, srcW, srcH, dstW, dstH, rowOffset,
+        y -> (int) Math.floor(
+            (srcW - 1) / 2.0 - (dstW - 1) / 2.0 - a * ((dstH - 1) / 2.0 - y) + 0.5));
+  }
+
+  /**
+   * Copies row y + rowOffset of src into row y of dst, with pixel x of dst taken from pixel x +
+   * columnOffset(y) of the source row. Anything outside the source is black.
+   */
+  private static int[] shifted(int[] src, int srcW, int srcH, int dstW, int dstH, int rowOffset,
+      IntUnaryOperator columnOffset) {
+    final var dst = new int[dstW * dstH];
+    final var deadline = Deadline.current();
+
+    IntStream.range(0, dstH)
+        .parallel()
+        .forEach(y -> {
+          deadline.check();
+          final var sy = y + rowOffset;
+          if (sy < 0 || sy >= srcH) {
+            return;
+          }
+          final var offset = columnOffset.applyAsInt(y);
+          // the part of the destination row that lands inside the source row
+          final var from = Math.max(0, -offset);
+          final var to = Math.min(dstW, srcW - offset);
+          if (from < to) {
+            System.arraycopy(src, sy * srcW + from + offset, dst, y * dstW + from, to - from);
+          }
+        });
+
+    return dst;
+  }
+
+  /**
+   * Swaps the rows and columns of a w by h picture, a tile at a time so that both the reads and
+   * the writes stay within a few cache lines.
+   */
+  private static int[] transposed(int[] src, int w, int h) {
+    final var dst = new int[w * h];
+    final var tileRows = (h + TILE - 1) / TILE;
+    final var deadline = Deadline.current();
+
+    IntStream.range(0, tileRows)
+        .parallel()
+        .forEach(tile -> {
+          deadline.check();
+          final var y0 = tile * TILE;
+          final var y1 = Math.min(y0 + TILE, h);
+          for (var x0 = 0; x0 < w; x0 += TILE) {
+            final var x1 = Math.min(x0 + TILE, w);
+            for (var y = y0; y < y1; y++) {
+              for (var x = x0; x < x1; x++) {
+                dst[x * h + y] = src[y * w + x];
+              }
+            }
+          }
+        });
+
+    return dst;
+  }
+
+  private static int[] reversed(int[] src) {
+    final var dst = new int[src.length];
+    for (var i = 0; i < src.length; i++) {
+      dst[i] = src[src.length - 1 - i];
+    }
+    return dst;
+  }
+}
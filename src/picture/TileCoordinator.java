@@ -0,0 +1,223 @@
+package picture;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.OptionalInt;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Spreads one picture across several worker processes. The picture is cut into square tiles,
+ * each grown by a halo as wide as the furthest any command in the pipeline looks, so that the
+ * middle of every tile comes back exactly as if the whole picture had been processed at once.
+ * The middles are then stitched together into the output.
+ *
+ * <p>Each worker is driven by its own thread taking tiles off a shared queue. If a worker dies,
+ * hangs, or can't be started, its tile goes back on the queue and the thread starts a new worker.
+ * Every tile is sent with the time left before the deadline. Once that passes, or a tile fails for
+ * good, the workers still busy are closed rather than waited for.
+ */
+class TileCoordinator {
+
+  // how many times a tile is sent to a worker before giving up on it
+  static final int MAX_ATTEMPTS = 3;
+  // how long a worker has to start, or to answer a request, before it is taken to have hung
+  static final int DEFAULT_TIMEOUT_MILLIS = 60_000;
+
+  private final int workers;
+  private final int tileSize;
+  private final Supplier<List<String>> workerCommand;
+  private final int timeoutMillis;
+
+  TileCoordinator(int workers, int tileSize, int timeoutMillis) {
+    this(workers, tileSize, TileWorker::defaultCommand, timeoutMillis);
+  }
+
+  TileCoordinator(
+      int workers, int tileSize, Supplier<List<String>> workerCommand, int timeoutMillis) {
+    this.workers = workers;
+    this.tileSize = tileSize;
+    this.workerCommand = workerCommand;
+    this.timeoutMillis = timeoutMillis;
+  }
+
+  /**
+   * Returns how far from a pixel the commands can look when working out its new value, or
+   * nothing if some command needs the whole picture (or changes its size) and so can't be run on
+   * tiles.
+   */
+  static OptionalInt haloRadius(List<String> commands) {
+    var radius = 0;
+
+    for (var i = 0; i < commands.size(); i++) {
+      switch (commands.get(i)) {
+        case "invert", "grayscale" -> {
+        }
+        case "blur" -> radius += 1;
+        case "erode", "dilate", "median" -> radius += Integer.parseInt(commands.get(++i));
+        case "open", "close" -> radius += 2 * Integer.parseInt(commands.get(++i));
+        default -> {
+          return OptionalInt.empty();
+        }
+      }
+    }
+
+    return OptionalInt.of(radius);
+  }
+
+  /**
+   * Runs the commands over the picture on the workers. The commands must have a {@link
+   * #haloRadius(List)}.
+   */
+  Picture process(Picture picture, List<String> commands) {
+    final var halo = haloRadius(commands)
+        .orElseThrow(() -> new RuntimeException("Commands can't be run on tiles: " + commands));
+
+    final var tiles = new ConcurrentLinkedQueue<Tile>();
+    for (var y = 0; y < picture.getHeight(); y += tileSize) {
+      for (var x = 0; x < picture.getWidth(); x += tileSize) {
+        tiles.add(new Tile(x, y,
+            Math.min(tileSize, picture.getWidth() - x),
+            Math.min(tileSize, picture.getHeight() - y),
+            halo, picture));
+      }
+    }
+
+    final var result = new Picture(picture.getWidth(), picture.getHeight());
+    final var deadline = Deadline.current();
+    final var live = ConcurrentHashMap.<TileWorker>newKeySet();
+    final var executor = Executors.newFixedThreadPool(workers);
+
+    try {
+      // dispatchers are waited for in the order they finish, so one failing is seen straight away
+      final var dispatchers = new ExecutorCompletionService<Void>(executor);
+      final var count = Math.min(workers, tiles.size());
+      for (var i = 0; i < count; i++) {
+        dispatchers.submit(() -> dispatch(tiles, picture, commands, result, deadline, live), null);
+      }
+      for (var i = 0; i < count; i++) {
+        final var dispatcher = deadline == Deadline.NONE
+            ? dispatchers.take()
+            : dispatchers.poll(Math.max(deadline.remainingNanos(), 0), TimeUnit.NANOSECONDS);
+        if (dispatcher == null) {
+          // the workers still busy would only notice the deadline at their next checkpoint
+          throw new DeadlineExceededException();
+        }
+        dispatcher.get();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    } catch (ExecutionException e) {
+      throw e.getCause() instanceof RuntimeException
+          ? (RuntimeException) e.getCause()
+          : new RuntimeException(e.getCause());
+    } finally {
+      // stops the other dispatchers if one failed or time ran out: the interrupt stops them taking
+      // more tiles, and closing the workers ends the reads they are blocked in, which interrupts
+      // don't
+      executor.shutdownNow();
+      tiles.clear();
+      live.forEach(TileWorker::close);
+    }
+
+    return result;
+  }
+
+  /**
+   * Sends tiles from the queue to one worker until there are none left or the thread is
+   * interrupted, restarting the worker and requeuing the tile whenever it fails or times out.
+   */
+  private void dispatch(ConcurrentLinkedQueue<Tile> tiles, Picture picture,
+      List<String> commands, Picture result, Deadline deadline, Set<TileWorker> live) {
+    TileWorker worker = null;
+
+    try {
+      Tile tile;
+      while (!Thread.currentThread().isInterrupted() && (tile = tiles.poll()) != null) {
+        deadline.check();
+        try {
+          if (worker == null) {
+            worker = TileWorker.start(workerCommand.get(), timeoutMillis);
+            live.add(worker);
+          }
+          tile.stitch(worker.process(commands, tile.cut(picture), deadline), result);
+        } catch (IOException e) {
+          if (worker != null) {
+            live.remove(worker);
+            worker.close();
+            worker = null;
+          }
+          deadline.check();
+          if (++tile.attempts >= MAX_ATTEMPTS) {
+            throw new RuntimeException("Giving up on tile at " + tile.x + "," + tile.y, e);
+          }
+          tiles.add(tile);
+        }
+      }
+    } finally {
+      if (worker != null) {
+        live.remove(worker);
+        worker.close();
+      }
+    }
+  }
+
+  /**
+   * A tile of the output, and the larger area around it (clamped to the picture) that has to be
+   * processed to work it out.
+   */
+  private static class Tile {
+
+    final int x;
+    final int y;
+    final int w;
+    final int h;
+
+    // the halo area, in picture co-ordinates
+    final int haloX;
+    final int haloY;
+    final int haloW;
+    final int haloH;
+
+    int attempts = 0;
+
+    Tile(int x, int y, int w, int h, int halo, Picture picture) {
+      this.x = x;
+      this.y = y;
+      this.w = w;
+      this.h = h;
+      this.haloX = Math.max(x - halo, 0);
+      this.haloY = Math.max(y - halo, 0);
+      this.haloW = Math.min(x + w + halo, picture.getWidth()) - haloX;
+      this.haloH = Math.min(y + h + halo, picture.getHeight()) - haloY;
+    }
+
+    Picture cut(Picture picture) {
+      final var tile = new Picture(haloW, haloH);
+      for (var row = 0; row < haloH; row++) {
+        System.arraycopy(
+            picture.data(), (haloY + row) * picture.getWidth() + haloX,
+            tile.data(), row * haloW,
+            haloW);
+      }
+      return tile;
+    }
+
+    // copies the middle of a processed tile into the output, each tile owning different pixels
+    void stitch(Picture processed, Picture result) {
+      for (var row = 0; row < h; row++) {
+        System.arraycopy(
+            processed.data(), (y - haloY + row) * haloW + x - haloX,
+            result.data(), (y + row) * result.getWidth() + x,
+            w);
+      }
+    }
+  }
+}
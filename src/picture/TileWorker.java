@@ -0,0 +1,227 @@
+package picture;
+
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A PictureProcessor running in another JVM that processes tiles for a {@link TileCoordinator}.
+ * The coordinator starts the process with <tt>--worker</tt>, reads the port it listens on from
+ * its first line of output and then sends it tiles over that one connection until it closes.
+ *
+ * <p>Every request is the time left before the deadline, the command list and a picture, and every
+ * reply is a status, then either the processed picture or an error message. The worker runs the
+ * commands under the deadline, so a late job is dropped there too.
+ */
+class TileWorker implements AutoCloseable {
+
+  private static final int OK = 0;
+  private static final int FAILED = 1;
+  private static final int LATE = 2;
+
+  private final Process process;
+  private final Socket socket;
+  private final DataInputStream in;
+  private final DataOutputStream out;
+
+  private TileWorker(Process process, Socket socket) throws IOException {
+    this.process = process;
+    this.socket = socket;
+    this.in = new DataInputStream(socket.getInputStream());
+    this.out = new DataOutputStream(socket.getOutputStream());
+  }
+
+  /**
+   * Starts a worker process with the given command line and connects to it. The worker has the
+   * given number of milliseconds to start listening, and then to answer each request, before it
+   * is taken to have hung and a {@link SocketTimeoutException} is thrown.
+   */
+  static TileWorker start(List<String> command, int timeoutMillis) throws IOException {
+    final var process = new ProcessBuilder(command)
+        .redirectError(ProcessBuilder.Redirect.INHERIT)
+        .start();
+
+    try {
+      final var port = Integer.parseInt(firstLine(process, timeoutMillis).trim());
+      final var socket = new Socket();
+      try {
+        socket.connect(
+            new InetSocketAddress(InetAddress.getLoopbackAddress(), port), timeoutMillis);
+        socket.setSoTimeout(timeoutMillis);
+        return new TileWorker(process, socket);
+      } catch (IOException e) {
+        socket.close();
+        throw e;
+      }
+    } catch (IOException | NumberFormatException e) {
+      process.destroy();
+      throw e instanceof IOException ? (IOException) e : new IOException(e);
+    }
+  }
+
+  // reads the port the worker prints, on another thread as reading a process can't time out
+  private static String firstLine(Process process, int timeoutMillis) throws IOException {
+    final var line = new CompletableFuture<String>();
+    final var reader = new Thread(() -> {
+      try {
+        line.complete(new BufferedReader(new InputStreamReader(process.getInputStream()))
+            .readLine());
+      } catch (IOException e) {
+        line.completeExceptionally(e);
+      }
+    });
+    reader.setDaemon(true);
+    reader.start();
+
+    try {
+      final var result = line.get(timeoutMillis, TimeUnit.MILLISECONDS);
+      if (result == null) {
+        throw new IOException("Worker exited before it started listening");
+      }
+      return result;
+    } catch (TimeoutException e) {
+      throw new SocketTimeoutException("Worker didn't start listening in time");
+    } catch (ExecutionException e) {
+      throw e.getCause() instanceof IOException
+          ? (IOException) e.getCause()
+          : new IOException(e.getCause());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException(e);
+    }
+  }
+
+  /**
+   * The command line that runs a worker in a JVM like this one.
+   */
+  static List<String> defaultCommand() {
+    return List.of(
+        System.getProperty("java.home") + "/bin/java",
+        "-cp",
+        System.getProperty("java.class.path"),
+        PictureProcessor.class.getName(),
+        "--worker"
+    );
+  }
+
+  /**
+   * Has the worker run the commands over the picture within the deadline, and returns what it
+   * sends back.
+   */
+  Picture process(List<String> commands, Picture picture, Deadline deadline) throws IOException {
+    out.writeLong(deadline.remainingNanos());
+    out.writeInt(commands.size());
+    for (final var command : commands) {
+      out.writeUTF(command);
+    }
+    writePicture(out, picture);
+    out.flush();
+
+    final var status = in.readInt();
+    if (status == LATE) {
+      in.readUTF();
+      throw new DeadlineExceededException();
+    }
+    if (status != OK) {
+      // the commands themselves failed, which won't be fixed by trying again
+      throw new RuntimeException("Worker failed: " + in.readUTF());
+    }
+    return readPicture(in);
+  }
+
+  @Override
+  public void close() {
+    try {
+      socket.close();
+    } catch (IOException e) {
+      // it's being thrown away anyway
+    }
+    process.destroy();
+  }
+
+  /**
+   * Worker side: listens on a free local port, prints it, then processes tiles from the first
+   * connection until it is closed.
+   */
+  static void serve() {
+    try (final var server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+      System.out.println(server.getLocalPort());
+      System.out.flush();
+
+      try (final var socket = server.accept()) {
+        final var in = new DataInputStream(socket.getInputStream());
+        final var out = new DataOutputStream(socket.getOutputStream());
+
+        while (true) {
+          final Deadline deadline;
+          try {
+            deadline = Deadline.afterNanos(in.readLong());
+          } catch (EOFException e) {
+            return;
+          }
+          final var count = in.readInt();
+          final var commands = new ArrayList<String>();
+          for (var i = 0; i < count; i++) {
+            commands.add(in.readUTF());
+          }
+          final var picture = readPicture(in);
+
+          final Picture result;
+          try {
+            result = deadline.run(() -> PictureProcessor.proccessCommands(
+                picture, commands, new RasterPool(), new Metrics()));
+          } catch (DeadlineExceededException e) {
+            out.writeInt(LATE);
+            out.writeUTF(String.valueOf(e.getMessage()));
+            out.flush();
+            continue;
+          } catch (RuntimeException e) {
+            out.writeInt(FAILED);
+            out.writeUTF(String.valueOf(e.getMessage()));
+            out.flush();
+            continue;
+          }
+
+          out.writeInt(OK);
+          writePicture(out, result);
+          out.flush();
+        }
+      }
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private static void writePicture(DataOutputStream out, Picture picture) throws IOException {
+    final var data = picture.data();
+    final var bytes = ByteBuffer.allocate(data.length * Integer.BYTES);
+    bytes.asIntBuffer().put(data);
+
+    out.writeInt(picture.getWidth());
+    out.writeInt(picture.getHeight());
+    out.write(bytes.array());
+  }
+
+  private static Picture readPicture(DataInputStream in) throws IOException {
+    final var picture = new Picture(in.readInt(), in.readInt());
+    final var bytes = new byte[picture.data().length * Integer.BYTES];
+    in.readFully(bytes);
+    ByteBuffer.wrap(bytes).asIntBuffer().get(picture.data());
+    return picture;
+  }
+}
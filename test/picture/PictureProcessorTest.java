@@ -1,6 +1,21 @@
 package picture;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.OptionalInt;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
 
 import org.junit.Assert;
 import org.junit.Rule;
@@ -103,6 +118,30 @@ public class PictureProcessorTest {
         TestSuiteHelper.runMain(tmpFolder, "blur", "images/sunset64x32.png"));
   }
 
+  @Test
+  public void blurTwiceSunset() throws IOException {
+    final var kernel = new Matrix(3, 3, new Double[][]{
+        new Double[]{1.0, 1.0, 1.0},
+        new Double[]{1.0, 1.0, 1.0},
+        new Double[]{1.0, 1.0, 1.0}
+    }).normalised();
+    Assert.assertEquals(
+        new Picture("images/sunsetBlur64x32.png").convoluted(kernel),
+        TestSuiteHelper.runMain(tmpFolder, "blur", "blur", "images/sunset64x32.png"));
+  }
+
+  @Test
+  public void blurThriceBWPatterns() throws IOException {
+    final var kernel = new Matrix(3, 3, new Double[][]{
+        new Double[]{1.0, 1.0, 1.0},
+        new Double[]{1.0, 1.0, 1.0},
+        new Double[]{1.0, 1.0, 1.0}
+    }).normalised();
+    Assert.assertEquals(
+        new Picture("images/bwpatternsblur64x64.png").convoluted(kernel).convoluted(kernel),
+        TestSuiteHelper.runMain(tmpFolder, "blur", "blur", "blur", "images/bwpatterns64x64.png"));
+  }
+
   @Test
   public void blendBWAndRainbow() throws IOException {
     Assert.assertEquals(
@@ -118,4 +157,703 @@ public class PictureProcessorTest {
         TestSuiteHelper.runMain(
             tmpFolder, "blend", "images/rainbow64x64doc.png", "images/sunset64x32.png"));
   }
+
+  @Test
+  public void histogramCountsEveryPixel() {
+    final var picture = new Picture("images/sunset64x32.png");
+    final var expected = new long[256];
+    final var reds = new long[256];
+    final var greens = new long[256];
+    final var blues = new long[256];
+    for (var y = 0; y < picture.getHeight(); y++) {
+      for (var x = 0; x < picture.getWidth(); x++) {
+        final var c = picture.getPixel(x, y);
+        expected[(c.getRed() + c.getGreen() + c.getBlue()) / 3]++;
+        reds[c.getRed()]++;
+        greens[c.getGreen()]++;
+        blues[c.getBlue()]++;
+      }
+    }
+
+    final var histogram = Histogram.of(picture);
+    Assert.assertEquals(64 * 32, histogram.total());
+    Assert.assertArrayEquals(expected, histogram.luminance());
+    Assert.assertArrayEquals(reds, histogram.red());
+    Assert.assertArrayEquals(greens, histogram.green());
+    Assert.assertArrayEquals(blues, histogram.blue());
+  }
+
+  @Test
+  public void equalizeMatchesCumulativeDistribution() {
+    final var picture = new Picture("images/sunset64x32.png");
+    final var pixels = picture.getWidth() * picture.getHeight();
+
+    final var cdf = new long[256];
+    for (var y = 0; y < picture.getHeight(); y++) {
+      for (var x = 0; x < picture.getWidth(); x++) {
+        final var c = picture.getPixel(x, y);
+        cdf[(c.getRed() + c.getGreen() + c.getBlue()) / 3]++;
+      }
+    }
+    for (var v = 1; v < 256; v++) {
+      cdf[v] += cdf[v - 1];
+    }
+    var darkest = 0L;
+    for (var v = 0; darkest == 0; v++) {
+      darkest = cdf[v];
+    }
+
+    final var curve = new int[256];
+    for (var v = 0; v < 256; v++) {
+      curve[v] = (int) Math.round(Math.max(cdf[v] - darkest, 0) * 255.0 / (pixels - darkest));
+    }
+
+    final var equalized = picture.equalized();
+    Assert.assertNotEquals(picture, equalized);
+    for (var y = 0; y < picture.getHeight(); y++) {
+      for (var x = 0; x < picture.getWidth(); x++) {
+        final var c = picture.getPixel(x, y);
+        Assert.assertEquals(
+            new Color(curve[c.getRed()], curve[c.getGreen()], curve[c.getBlue()]),
+            equalized.getPixel(x, y));
+      }
+    }
+  }
+
+  @Test
+  public void autolevelsStretchesEachChannel() {
+    final var picture = new Picture("images/sunset64x32.png");
+    final var lo = new int[]{255, 255, 255};
+    final var hi = new int[]{0, 0, 0};
+    for (var y = 0; y < picture.getHeight(); y++) {
+      for (var x = 0; x < picture.getWidth(); x++) {
+        final var c = picture.getPixel(x, y);
+        final var channels = new int[]{c.getRed(), c.getGreen(), c.getBlue()};
+        for (var i = 0; i < 3; i++) {
+          lo[i] = Math.min(lo[i], channels[i]);
+          hi[i] = Math.max(hi[i], channels[i]);
+        }
+      }
+    }
+
+    final var levelled = picture.autoLevelled();
+    Assert.assertNotEquals(picture, levelled);
+    for (var y = 0; y < picture.getHeight(); y++) {
+      for (var x = 0; x < picture.getWidth(); x++) {
+        final var c = picture.getPixel(x, y);
+        final var channels = new int[]{c.getRed(), c.getGreen(), c.getBlue()};
+        final var expected = new int[3];
+        for (var i = 0; i < 3; i++) {
+          expected[i] = hi[i] == lo[i]
+              ? channels[i]
+              : (int) Math.round((channels[i] - lo[i]) * 255.0 / (hi[i] - lo[i]));
+        }
+        Assert.assertEquals(
+            new Color(expected[0], expected[1], expected[2]), levelled.getPixel(x, y));
+      }
+    }
+  }
+
+  @Test
+  public void equalizeBWPatterns() throws IOException {
+    Assert.assertEquals(
+        new Picture("images/bwpatterns64x64.png"),
+        TestSuiteHelper.runMain(tmpFolder, "equalize", "images/bwpatterns64x64.png"));
+  }
+
+  @Test
+  public void autolevelsSunset() throws IOException {
+    final var histogram = Histogram.of(
+        TestSuiteHelper.runMain(tmpFolder, "autolevels", "images/sunset64x32.png"));
+    for (final var channel : new long[][]{
+        histogram.red(), histogram.green(), histogram.blue()}) {
+      Assert.assertTrue(channel[0] > 0);
+      Assert.assertTrue(channel[255] > 0);
+    }
+  }
+
+  @Test
+  public void pipelineReusesPooledRasters() {
+    final var kernel = new Matrix(3, 3, new Double[][]{
+        new Double[]{1.0, 1.0, 1.0},
+        new Double[]{1.0, 1.0, 1.0},
+        new Double[]{1.0, 1.0, 1.0}
+    }).normalised();
+    final var pool = new RasterPool();
+    final var output = PictureProcessor.proccessCommands(
+        new Picture("images/rainbow64x64doc.png"),
+        new ArrayList<>(List.of("invert", "blur", "rotate", "90", "blur", "grayscale")),
+        pool, new Metrics());
+
+    Assert.assertEquals(
+        new Picture("images/rainbow64x64doc.png")
+            .inverted().convoluted(kernel).rotated(90.0).convoluted(kernel).grayscaled(),
+        output);
+    // the blur, rotate, blur stages each borrow a raster, and the later two get back one of the
+    // rasters released by the stages before them
+    Assert.assertEquals(3, pool.getBorrowed());
+    Assert.assertEquals(2, pool.getReused());
+  }
+
+  @Test
+  public void rasterPoolPingPongs() {
+    final var pool = new RasterPool();
+    final var first = pool.borrow(64, 32);
+    pool.release(first);
+    final var second = pool.borrow(64, 32);
+    pool.release(second);
+
+    Assert.assertSame(first, second);
+    Assert.assertNotSame(first, pool.borrow(32, 64));
+    Assert.assertEquals(1, pool.getReused());
+  }
+
+  @Test
+  public void erodeRainbow() throws IOException {
+    Assert.assertEquals(
+        windowed(new Picture("images/rainbow64x64doc.png"), 2, MIN),
+        TestSuiteHelper.runMain(tmpFolder, "erode", "2", "images/rainbow64x64doc.png"));
+  }
+
+  @Test
+  public void dilateBWPatterns() throws IOException {
+    Assert.assertEquals(
+        windowed(new Picture("images/bwpatterns64x64.png"), 3, MAX),
+        TestSuiteHelper.runMain(tmpFolder, "dilate", "3", "images/bwpatterns64x64.png"));
+  }
+
+  @Test
+  public void openSunset() throws IOException {
+    Assert.assertEquals(
+        windowed(windowed(new Picture("images/sunset64x32.png"), 4, MIN), 4, MAX),
+        TestSuiteHelper.runMain(tmpFolder, "open", "4", "images/sunset64x32.png"));
+  }
+
+  @Test
+  public void closeBWPatterns() throws IOException {
+    Assert.assertEquals(
+        windowed(windowed(new Picture("images/bwpatterns64x64.png"), 1, MAX), 1, MIN),
+        TestSuiteHelper.runMain(tmpFolder, "close", "1", "images/bwpatterns64x64.png"));
+  }
+
+  @Test
+  public void medianSunset() throws IOException {
+    Assert.assertEquals(
+        windowed(new Picture("images/sunset64x32.png"), 3, MEDIAN),
+        TestSuiteHelper.runMain(tmpFolder, "median", "3", "images/sunset64x32.png"));
+  }
+
+  @Test
+  public void medianAfterBlurRainbow() throws IOException {
+    Assert.assertEquals(
+        new Picture("images/rainbow64x64doc.png").convoluted(blurKernel()).medianFiltered(2),
+        TestSuiteHelper.runMain(tmpFolder, "blur", "median", "2", "images/rainbow64x64doc.png"));
+  }
+
+  private static final int MIN = 0;
+  private static final int MAX = 1;
+  private static final int MEDIAN = 2;
+
+  private static Matrix blurKernel() {
+    return new Matrix(3, 3, new Double[][]{
+        new Double[]{1.0, 1.0, 1.0},
+        new Double[]{1.0, 1.0, 1.0},
+        new Double[]{1.0, 1.0, 1.0}
+    }).normalised();
+  }
+
+  // brute force square window filters, as a reference for the constant time ones
+  private static Picture windowed(Picture picture, int radius, int filter) {
+    final var w = picture.getWidth();
+    final var h = picture.getHeight();
+    final var result = new Picture(w, h);
+    for (var y = 0; y < h; y++) {
+      for (var x = 0; x < w; x++) {
+        final var reds = new ArrayList<Integer>();
+        final var greens = new ArrayList<Integer>();
+        final var blues = new ArrayList<Integer>();
+        for (var dy = -radius; dy <= radius; dy++) {
+          for (var dx = -radius; dx <= radius; dx++) {
+            var wx = x + dx;
+            var wy = y + dy;
+            if (filter == MEDIAN) {
+              // the median repeats the edges, min and max leave them out
+              wx = Math.min(Math.max(wx, 0), w - 1);
+              wy = Math.min(Math.max(wy, 0), h - 1);
+            } else if (!picture.contains(wx, wy)) {
+              continue;
+            }
+            final var c = picture.getPixel(wx, wy);
+            reds.add(c.getRed());
+            greens.add(c.getGreen());
+            blues.add(c.getBlue());
+          }
+        }
+        result.setPixel(x, y, new Color(
+            pick(reds, filter), pick(greens, filter), pick(blues, filter)));
+      }
+    }
+    return result;
+  }
+
+  private static int pick(ArrayList<Integer> values, int filter) {
+    Collections.sort(values);
+    return switch (filter) {
+      case MIN -> values.get(0);
+      case MAX -> values.get(values.size() - 1);
+      default -> values.get(values.size() / 2);
+    };
+  }
+
+  @Test
+  public void shearRotationMatchesInverseMapping() {
+    final var picture = new Picture("images/rainbow64x64doc.png");
+    for (final var angle : new double[]{30.0, 135.0, -60.0}) {
+      final var expected = picture.transformed(Matrix.rotate(angle));
+      final var actual = ShearRotation.rotated(
+          picture, angle, new Picture(expected.getWidth(), expected.getHeight()));
+      // the shears round pixel positions differently, so allow them to be one pixel out, and on a
+      // picture this small the edges, where the roundings disagree most, are a large share of it
+      Assert.assertTrue(matchingWithinOnePixel(expected, actual) > 0.965);
+    }
+  }
+
+  @Test
+  public void largePicturesRotateByShearing() {
+    // big enough to be sheared, made of the rainbow scaled up 8 times
+    final var rainbow = new Picture("images/rainbow64x64doc.png");
+    final var picture = new Picture(512, 512);
+    for (var y = 0; y < 512; y++) {
+      for (var x = 0; x < 512; x++) {
+        picture.setPixel(x, y, rainbow.getPixel(x / 8, y / 8));
+      }
+    }
+
+    for (final var angle : new double[]{1.0, 30.0, 100.0, 135.0, 200.0, 359.0, -45.0, -170.0}) {
+      final var expected = picture.transformed(Matrix.rotate(angle));
+      final var actual = picture.rotated(angle);
+      Assert.assertEquals(expected.getWidth(), actual.getWidth());
+      Assert.assertEquals(expected.getHeight(), actual.getHeight());
+      Assert.assertTrue(matchingWithinOnePixel(expected, actual) > 0.999);
+    }
+  }
+
+  private static double matchingWithinOnePixel(Picture expected, Picture actual) {
+    var matching = 0;
+    for (var y = 0; y < actual.getHeight(); y++) {
+      for (var x = 0; x < actual.getWidth(); x++) {
+        search:
+        for (var dy = -1; dy <= 1; dy++) {
+          for (var dx = -1; dx <= 1; dx++) {
+            if (expected.contains(x + dx, y + dy)
+                && expected.getPixel(x + dx, y + dy).equals(actual.getPixel(x, y))) {
+              matching++;
+              break search;
+            }
+          }
+        }
+      }
+    }
+    return (double) matching / (actual.getWidth() * actual.getHeight());
+  }
+
+  @Test
+  public void shardedAcrossWorkers() throws IOException {
+    Assert.assertEquals(
+        new Picture("images/rainbow64x64doc.png")
+            .convoluted(blurKernel()).medianFiltered(2).inverted().opened(1),
+        TestSuiteHelper.runMain(tmpFolder, "--workers", "2", "--tile", "16",
+            "blur", "median", "2", "invert", "open", "1", "images/rainbow64x64doc.png"));
+  }
+
+  @Test
+  public void shardingRetriesFailedWorkers() {
+    final var starts = new AtomicInteger();
+    final var coordinator = new TileCoordinator(1, 32, () -> starts.getAndIncrement() == 0
+        ? List.of(System.getProperty("java.home") + "/bin/java", "NoSuchWorker")
+        : TileWorker.defaultCommand(), TileCoordinator.DEFAULT_TIMEOUT_MILLIS);
+    final var picture = new Picture("images/sunset64x32.png");
+
+    Assert.assertEquals(
+        picture.eroded(3),
+        coordinator.process(picture, List.of("erode", "3")));
+    Assert.assertEquals(2, starts.get());
+  }
+
+  @Test
+  public void shardingRestartsHungWorkers() throws IOException {
+    // accepts connections but never answers them
+    try (final var silent = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+      final var starts = new AtomicInteger();
+      final var coordinator = new TileCoordinator(1, 32, () -> switch (starts.getAndIncrement()) {
+        // never prints a port
+        case 0 -> List.of("sleep", "60");
+        // prints the port of a server that never answers
+        case 1 -> List.of("echo", String.valueOf(silent.getLocalPort()));
+        default -> TileWorker.defaultCommand();
+      }, 3000);
+      final var picture = new Picture("images/sunset64x32.png");
+
+      Assert.assertEquals(
+          picture.eroded(3),
+          coordinator.process(picture, List.of("erode", "3")));
+      Assert.assertEquals(3, starts.get());
+    }
+  }
+
+  @Test
+  public void workersRunTilesUnderTheDeadline() throws IOException {
+    final var picture = new Picture("images/sunset64x32.png");
+    try (final var worker = TileWorker.start(
+        TileWorker.defaultCommand(), TileCoordinator.DEFAULT_TIMEOUT_MILLIS)) {
+      try {
+        worker.process(List.of("median", "2"), picture, Deadline.after(0));
+        Assert.fail();
+      } catch (DeadlineExceededException e) {
+        // the worker gave up on the tile itself
+      }
+      Assert.assertEquals(
+          picture.medianFiltered(2),
+          worker.process(List.of("median", "2"), picture, Deadline.NONE));
+    }
+  }
+
+  @Test(timeout = 20_000)
+  public void shardingClosesBusyWorkersAtDeadline() throws IOException {
+    // accepts connections but never answers them
+    try (final var silent = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+      final var coordinator = new TileCoordinator(1, 32,
+          () -> List.of("echo", String.valueOf(silent.getLocalPort())),
+          TileCoordinator.DEFAULT_TIMEOUT_MILLIS);
+      final var picture = new Picture("images/sunset64x32.png");
+
+      final var start = System.nanoTime();
+      try {
+        Deadline.after(1000).run(() -> coordinator.process(picture, List.of("erode", "3")));
+        Assert.fail();
+      } catch (DeadlineExceededException e) {
+        Assert.assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(10));
+      }
+    }
+  }
+
+  @Test
+  public void shardedPreviewBlendsPreviews() {
+    final var options = Options.parse(new ArrayList<>(List.of("--workers", "2")));
+    final var preview = new Picture("images/bwpatterns64x64.png").downscaled(2);
+
+    Assert.assertEquals(
+        preview.blended(Stream.of(new Picture("images/rainbow64x64doc.png").downscaled(2))),
+        PictureProcessor.sharded(new Picture(preview),
+            new ArrayList<>(List.of("blend", "images/rainbow64x64doc.png")),
+            options, new Metrics(), 2));
+  }
+
+  @Test(timeout = 20_000)
+  public void shardingStopsEveryWorkerWhenATileFails() throws Exception {
+    // accepts connections but never answers them
+    try (final var silent = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+      final var starts = new AtomicInteger();
+      // the first worker hangs, and every other one fails to start, so the other tile is given up
+      final var coordinator = new TileCoordinator(2, 32, () -> starts.getAndIncrement() == 0
+          ? List.of("echo", String.valueOf(silent.getLocalPort()))
+          : List.of(System.getProperty("java.home") + "/bin/java", "NoSuchWorker"),
+          TileCoordinator.DEFAULT_TIMEOUT_MILLIS);
+      final var picture = new Picture("images/sunset64x32.png");
+
+      try {
+        coordinator.process(picture, List.of("erode", "3"));
+        Assert.fail();
+      } catch (RuntimeException e) {
+        Assert.assertTrue(e.getMessage().startsWith("Giving up on tile"));
+      }
+      Thread.sleep(1000);
+      Assert.assertEquals(1 + TileCoordinator.MAX_ATTEMPTS, starts.get());
+    }
+  }
+
+  @Test
+  public void haloCoversEveryCommand() {
+    Assert.assertEquals(
+        OptionalInt.of(1 + 2 + 6 + 3),
+        TileCoordinator.haloRadius(
+            List.of("blur", "invert", "erode", "2", "close", "3", "median", "3")));
+    Assert.assertFalse(TileCoordinator.haloRadius(List.of("blur", "rotate", "90")).isPresent());
+  }
+
+  @Test
+  public void indexedBWPatterns() throws IOException {
+    Assert.assertEquals(
+        new Picture("images/bwpatterns64x64.png").inverted(),
+        TestSuiteHelper.runMain(tmpFolder, "--indexed", "invert", "images/bwpatterns64x64.png"));
+  }
+
+  @Test
+  public void indexedIsSmaller() throws IOException {
+    final var picture = new Picture("images/bwpatterns64x64.png").grayscaled();
+    final var rgb = tmpFolder.newFile("rgb.png");
+    final var indexed = tmpFolder.newFile("indexed.png");
+    final var palette = Palette.exact(picture, Palette.MAX_COLOURS).get();
+
+    picture.saveAs(rgb.getAbsolutePath());
+    picture.saveAs(indexed.getAbsolutePath(), palette);
+
+    Assert.assertEquals(picture, new Picture(indexed.getAbsolutePath()));
+    Assert.assertTrue(indexed.length() < rgb.length());
+  }
+
+  @Test
+  public void quantizeRainbow() throws IOException {
+    final var quantised = TestSuiteHelper.runMain(
+        tmpFolder, "--quantize", "16", "images/rainbow64x64doc.png");
+    Assert.assertTrue(Palette.exact(quantised, 16).isPresent());
+  }
+
+  @Test
+  public void colorSetNumbersColours() {
+    final var set = new ColorSet(3);
+    Assert.assertEquals(0, set.add(0xff0000));
+    Assert.assertEquals(1, set.add(0x00ff00));
+    Assert.assertEquals(0, set.add(0xffff0000));
+    Assert.assertEquals(2, set.add(0x0000ff));
+    Assert.assertEquals(-1, set.add(0xffffff));
+    Assert.assertEquals(3, set.size());
+  }
+
+  @Test
+  public void uncompressedFormatsRoundTrip() throws IOException {
+    final var picture = new Picture("images/rainbow64x64doc.png");
+    for (final var extension : new String[]{"ppm", "pam", "raw"}) {
+      final var path = tmpFolder.newFile("rainbow." + extension).getAbsolutePath();
+      picture.saveAs(path);
+      Assert.assertEquals(picture, new Picture(path));
+    }
+  }
+
+  @Test
+  public void truncatedRawFails() throws IOException {
+    final var path = tmpFolder.newFile("truncated.raw").toPath();
+    new Picture("images/rainbow64x64doc.png").saveAs(path.toString());
+    final var truncated = Arrays.copyOf(Files.readAllBytes(path), 1000);
+    Files.write(path, truncated);
+
+    for (final var picture : List.<Supplier<Picture>>of(
+        () -> new Picture(path.toString()),
+        () -> new Picture(new ByteArrayInputStream(truncated)))) {
+      try {
+        picture.get();
+        Assert.fail();
+      } catch (RuntimeException e) {
+        Assert.assertEquals("RAW data ends early", e.getCause().getMessage());
+      }
+    }
+  }
+
+  @Test
+  public void readsNetpbmWithCommentsAndGray() {
+    final var header = "P7\n# a comment\nWIDTH 2\nHEIGHT 1\nDEPTH 1\nMAXVAL 15\n"
+        + "TUPLTYPE GRAYSCALE\nENDHDR\n";
+    final var bytes = Arrays.copyOf(header.getBytes(), header.length() + 2);
+    bytes[header.length()] = 0;
+    bytes[header.length() + 1] = 15;
+
+    final var picture = new Picture(new ByteArrayInputStream(bytes));
+    Assert.assertEquals(new Color(0, 0, 0), picture.getPixel(0, 0));
+    Assert.assertEquals(new Color(255, 255, 255), picture.getPixel(1, 0));
+  }
+
+  @Test
+  public void pipesThroughStandardStreams() throws IOException {
+    final var raw = new ByteArrayOutputStream();
+    new Picture("images/sunset64x32.png").saveAs(raw, RasterFormat.RAW);
+
+    final var stdin = System.in;
+    final var stdout = System.out;
+    final var piped = new ByteArrayOutputStream();
+    try {
+      System.setIn(new ByteArrayInputStream(raw.toByteArray()));
+      System.setOut(new PrintStream(piped));
+      PictureProcessor.main(new String[]{"--format", "ppm", "blur", "-", "-"});
+    } finally {
+      System.setIn(stdin);
+      System.setOut(stdout);
+    }
+
+    Assert.assertEquals(
+        new Picture("images/sunsetBlur64x32.png"),
+        new Picture(new ByteArrayInputStream(piped.toByteArray())));
+  }
+
+  @Test
+  public void convolutionSharpenMatchesDoubleMaths() {
+    final var picture = new Picture("images/rainbow64x64doc.png");
+    final var kernel = new Matrix(3, 3, new Double[][]{
+        new Double[]{0.0, -1.0, 0.0},
+        new Double[]{-1.0, 5.0, -1.0},
+        new Double[]{0.0, -1.0, 0.0}
+    });
+    Assert.assertEquals(convolutedWithDoubles(picture, kernel), picture.convoluted(kernel));
+  }
+
+  @Test
+  public void convolutionGaussianMatchesDoubleMaths() {
+    final var picture = new Picture("images/sunset64x32.png");
+    final var kernel = new Matrix(3, 3, new Double[][]{
+        new Double[]{1.0, 2.0, 1.0},
+        new Double[]{2.0, 4.0, 2.0},
+        new Double[]{1.0, 2.0, 1.0}
+    }).normalised();
+    Assert.assertEquals(convolutedWithDoubles(picture, kernel), picture.convoluted(kernel));
+    Assert.assertTrue(IntegerKernel.of(kernel).isPresent());
+  }
+
+  @Test
+  public void convolutionFallsBackToDoubleMaths() {
+    final var picture = new Picture("images/bwpatterns64x64.png");
+    final var kernel = new Matrix(3, 3, new Double[][]{
+        new Double[]{0.01, 0.49, 0.01},
+        new Double[]{0.01, 0.45, 0.01},
+        new Double[]{0.01, 0.0, 0.01}
+    });
+    Assert.assertFalse(IntegerKernel.of(kernel).isPresent());
+    Assert.assertEquals(convolutedWithDoubles(picture, kernel), picture.convoluted(kernel));
+  }
+
+  @Test(expected = DeadlineExceededException.class)
+  public void convolutionGivesUpAtDeadline() {
+    final var picture = new Picture("images/sunset64x32.png");
+    Deadline.after(0).run(() -> picture.convoluted(blurKernel()));
+  }
+
+  @Test(expected = DeadlineExceededException.class)
+  public void medianGivesUpAtDeadline() {
+    final var picture = new Picture("images/rainbow64x64doc.png");
+    Deadline.after(0).run(() -> picture.medianFiltered(2));
+  }
+
+  @Test(expected = DeadlineExceededException.class)
+  public void pipelineGivesUpAtDeadline() throws IOException {
+    final var output = tmpFolder.newFile("late.png").getPath();
+    PictureProcessor.main(new String[]{
+        "--deadline", "0", "invert", "images/sunset64x32.png", output
+    });
+  }
+
+  @Test
+  public void previewFitsTheBudget() {
+    final var commands = List.of("median", "3", "rotate", "30", "blur");
+    Assert.assertEquals(1, CostModel.previewFactor(
+        commands, 1024, 1024, RasterFormat.PNG, Long.MAX_VALUE));
+
+    final var budget = 10_000_000L;
+    final var factor = CostModel.previewFactor(
+        commands, 1024, 1024, RasterFormat.PNG, budget);
+    Assert.assertTrue(factor > 1);
+    Assert.assertTrue(CostModel.estimateNanos(
+        commands, 1024 / factor + 1, 1024 / factor + 1, RasterFormat.PNG) <= budget);
+  }
+
+  @Test
+  public void downscaledAveragesBlocks() {
+    final var picture = new Picture("images/sunset64x32.png");
+    final var preview = picture.downscaled(3);
+    Assert.assertEquals(22, preview.getWidth());
+    Assert.assertEquals(11, preview.getHeight());
+
+    for (var y = 0; y < preview.getHeight(); y++) {
+      for (var x = 0; x < preview.getWidth(); x++) {
+        var r = 0;
+        var n = 0;
+        for (var sy = y * 3; sy < Math.min(y * 3 + 3, picture.getHeight()); sy++) {
+          for (var sx = x * 3; sx < Math.min(x * 3 + 3, picture.getWidth()); sx++) {
+            r += picture.getPixel(sx, sy).getRed();
+            n++;
+          }
+        }
+        Assert.assertEquals((r + n / 2) / n, preview.getPixel(x, y).getRed());
+      }
+    }
+  }
+
+  @Test
+  public void latencyHistogramPercentiles() {
+    final var histogram = new LatencyHistogram();
+    for (var i = 1; i <= 1000; i++) {
+      histogram.record(i * 1000L);
+    }
+    Assert.assertEquals(1000, histogram.count());
+    Assert.assertEquals(1_000_000, histogram.max());
+    // buckets are within a sixteenth of their values
+    Assert.assertEquals(500_000, histogram.percentile(0.5), 500_000 / 16.0);
+    Assert.assertEquals(990_000, histogram.percentile(0.99), 990_000 / 16.0);
+    Assert.assertEquals(1_000_000, histogram.percentile(0.999), 1_000_000 / 16.0);
+    for (final var value : new long[]{0, 15, 16, 17, 1000, Long.MAX_VALUE}) {
+      Assert.assertTrue(
+          LatencyHistogram.highest(LatencyHistogram.bucket(value)) >= value);
+    }
+  }
+
+  @Test
+  public void benchWritesResults() throws IOException {
+    final var corpus = tmpFolder.newFolder("corpus").toPath();
+    final var results = tmpFolder.getRoot().toPath().resolve("results.json");
+    PictureProcessor.main(new String[]{
+        "bench", "--sizes", "48x32,32x32", "--images", "2", "--jobs", "12", "--warmup", "2",
+        "--rate", "200", "--threads", "2", corpus.toString(), results.toString()
+    });
+
+    final var json = Files.readString(results);
+    Assert.assertTrue(json.contains("\"jobs\": 12,"));
+    Assert.assertTrue(json.contains("\"completed\": 12,"));
+    Assert.assertTrue(json.contains("\"failed\": 0,"));
+    Assert.assertTrue(json.contains("\"p99.9\": "));
+
+    // the corpus is the same every time for the same seed
+    final var first = new Picture(corpus.resolve("synthetic48x32-1-1.png").toString());
+    final var bench = Bench.parse(new ArrayList<>(List.of(
+        "--sizes", "48x32", "--images", "2", corpus.resolve("again").toString(), "x.json")));
+    final var again = bench.generateCorpus();
+    Assert.assertEquals(first, new Picture(again.get(1).toString()));
+  }
+
+  @Test
+  public void benchCountsMissedDeadlines() throws IOException {
+    final var corpus = tmpFolder.newFolder("late").toPath();
+    final var results = tmpFolder.getRoot().toPath().resolve("late.json");
+    PictureProcessor.main(new String[]{
+        "--deadline", "0", "bench", "--sizes", "32x32", "--images", "1", "--jobs", "4",
+        "--warmup", "2", "--rate", "200", "--threads", "2", corpus.toString(),
+        results.toString()
+    });
+
+    final var json = Files.readString(results);
+    Assert.assertTrue(json.contains("\"missed\": 4,"));
+    Assert.assertTrue(json.contains("\"failed\": 0,"));
+    // jobs that missed the deadline made no pictures
+    Assert.assertTrue(json.contains("\"completed\": 0,"));
+    Assert.assertTrue(json.contains("\"imagesPerSecond\": 0.0,"));
+  }
+
+  // the original boxed Double convolution, as a reference for the integer one
+  private static Picture convolutedWithDoubles(Picture picture, Matrix kernal) {
+    final var result = new Picture(picture);
+    for (var x = 0; x < picture.getWidth() - kernal.w + 1; x++) {
+      for (var y = 0; y < picture.getHeight() - kernal.h + 1; y++) {
+        var r = 0.0;
+        var g = 0.0;
+        var b = 0.0;
+        for (var kx = 0; kx < kernal.w; kx++) {
+          for (var ky = 0; ky < kernal.h; ky++) {
+            final var color = picture.getPixel(x + kx, y + ky);
+            r += kernal.vals[ky][kx] * color.getRed();
+            g += kernal.vals[ky][kx] * color.getGreen();
+            b += kernal.vals[ky][kx] * color.getBlue();
+          }
+        }
+        result.setPixel(x + (kernal.w - 1) / 2, y + (kernal.h - 1) / 2,
+            new Color((int) (r + 0.01), (int) (g + 0.01), (int) (b + 0.01)));
+      }
+    }
+    return result;
+  }
 }